@@ -0,0 +1,41 @@
+package xyz.nucleoid.plasmid.benchmark;
+
+import net.fabricmc.loader.api.entrypoint.PreLaunchEntrypoint;
+import net.minecraft.Bootstrap;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import xyz.nucleoid.plasmid.Plasmid;
+
+/**
+ * Runs the benchmarks from within the fabric loader, so that our mixins are applied to the code being measured, and
+ * then exits before the server would start.
+ * <p>
+ * Benchmarks run in the launching JVM rather than in forks, as a forked JVM would not be set up by the loader. Arguments
+ * for JMH are taken from the {@code plasmid.jmh.args} system property.
+ */
+public final class BenchmarkLauncher implements PreLaunchEntrypoint {
+    @Override
+    public void onPreLaunch() {
+        Bootstrap.initialize();
+
+        int status = 0;
+        try {
+            String args = System.getProperty("plasmid.jmh.args", "").trim();
+            CommandLineOptions commandLine = new CommandLineOptions(args.isEmpty() ? new String[0] : args.split("\\s+"));
+
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .forks(0)
+                    .build();
+
+            new Runner(options).run();
+        } catch (Exception e) {
+            Plasmid.LOGGER.error("Failed to run benchmarks", e);
+            status = 1;
+        }
+
+        System.exit(status);
+    }
+}
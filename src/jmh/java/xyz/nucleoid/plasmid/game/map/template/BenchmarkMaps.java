@@ -0,0 +1,98 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.math.BlockPos;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+
+import java.util.Random;
+
+/**
+ * Generates the fixture maps used by the benchmarks, so that they can be run without any map files.
+ * <p>
+ * Every fixture is generated from a fixed seed, so that results are comparable between runs. A fixture is made up of
+ * rolling terrain with buildings scattered across it, each holding a chest and marked by a region.
+ */
+final class BenchmarkMaps {
+    static final int HEIGHT = 96;
+
+    private static final long SEED = 0x504C41534D4944L;
+
+    private static final BlockState STONE = Blocks.STONE.getDefaultState();
+    private static final BlockState DIRT = Blocks.DIRT.getDefaultState();
+    private static final BlockState GRASS = Blocks.GRASS_BLOCK.getDefaultState();
+    private static final BlockState[] WALLS = new BlockState[] {
+            Blocks.OAK_PLANKS.getDefaultState(),
+            Blocks.STONE_BRICKS.getDefaultState(),
+            Blocks.WHITE_TERRACOTTA.getDefaultState(),
+            Blocks.GLASS.getDefaultState()
+    };
+    private static final BlockState CHEST = Blocks.CHEST.getDefaultState();
+
+    private BenchmarkMaps() {
+    }
+
+    /**
+     * Generates a fixture map spanning the given width and length, and {@link BenchmarkMaps#HEIGHT} blocks tall.
+     *
+     * @param size the width and length of the map
+     * @return the generated map, which is not frozen
+     */
+    static MapTemplate create(int size) {
+        MapTemplate template = MapTemplate.createEmpty();
+        Random random = new Random(SEED);
+
+        BlockPos.Mutable pos = new BlockPos.Mutable();
+        for (int z = 0; z < size; z++) {
+            for (int x = 0; x < size; x++) {
+                int surfaceY = getSurfaceY(x, z);
+                for (int y = 0; y <= surfaceY; y++) {
+                    BlockState state = y == surfaceY ? GRASS : y > surfaceY - 4 ? DIRT : STONE;
+                    template.setBlockState(pos.set(x, y, z), state);
+                }
+            }
+        }
+
+        int buildings = size * size / 512;
+        for (int i = 0; i < buildings; i++) {
+            int width = 5 + random.nextInt(8);
+            int length = 5 + random.nextInt(8);
+            int height = 4 + random.nextInt(12);
+
+            int minX = random.nextInt(size - width);
+            int minZ = random.nextInt(size - length);
+            int minY = getSurfaceY(minX, minZ) + 1;
+            BlockState wall = WALLS[random.nextInt(WALLS.length)];
+
+            BlockBounds bounds = new BlockBounds(new BlockPos(minX, minY, minZ), new BlockPos(minX + width - 1, minY + height - 1, minZ + length - 1));
+            for (BlockPos wallPos : bounds.iterate()) {
+                boolean edge = wallPos.getX() == minX || wallPos.getX() == minX + width - 1
+                        || wallPos.getZ() == minZ || wallPos.getZ() == minZ + length - 1
+                        || wallPos.getY() == minY + height - 1;
+                if (edge) {
+                    template.setBlockState(wallPos, wall);
+                }
+            }
+
+            BlockPos chestPos = new BlockPos(minX + width / 2, minY, minZ + length / 2);
+            template.setBlockState(chestPos, CHEST);
+
+            CompoundTag chest = new CompoundTag();
+            chest.putString("id", "minecraft:chest");
+            chest.putString("LootTable", "minecraft:chests/simple_dungeon");
+            template.setBlockEntityTag(chestPos, chest);
+
+            template.addRegion("building", bounds);
+        }
+
+        template.addRegion("spawn", BlockBounds.of(new BlockPos(size / 2, getSurfaceY(size / 2, size / 2) + 1, size / 2)));
+        template.setBounds(new BlockBounds(BlockPos.ORIGIN, new BlockPos(size - 1, HEIGHT - 1, size - 1)));
+
+        return template;
+    }
+
+    private static int getSurfaceY(int x, int z) {
+        return HEIGHT / 3 + (int) (Math.sin(x * 0.07) * 8.0 + Math.cos(z * 0.05) * 8.0);
+    }
+}
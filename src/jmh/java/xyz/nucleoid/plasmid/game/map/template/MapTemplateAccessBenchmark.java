@@ -0,0 +1,104 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.Heightmap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures single block access on a map template: reading and writing block states and querying the top block of a
+ * column. Each invocation visits a fixed set of random positions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MapTemplateAccessBenchmark {
+    private static final int POSITIONS = 1024;
+
+    private static final BlockState[] STATES = new BlockState[] {
+            Blocks.AIR.getDefaultState(),
+            Blocks.STONE.getDefaultState(),
+            Blocks.OAK_PLANKS.getDefaultState(),
+            Blocks.GLASS.getDefaultState()
+    };
+
+    @Param({ "64", "256" })
+    public int size;
+
+    private MapTemplate template;
+    private MapTemplate frozen;
+    private MapTemplate offHeap;
+
+    private final BlockPos[] positions = new BlockPos[POSITIONS];
+    private final int[] columns = new int[POSITIONS * 2];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.template = BenchmarkMaps.create(this.size);
+        this.frozen = BenchmarkMaps.create(this.size).freeze();
+        this.offHeap = BenchmarkMaps.create(this.size).freeze().moveSectionsOffHeap();
+
+        Random random = new Random(0);
+        for (int i = 0; i < POSITIONS; i++) {
+            this.positions[i] = new BlockPos(random.nextInt(this.size), random.nextInt(BenchmarkMaps.HEIGHT), random.nextInt(this.size));
+            this.columns[i * 2] = random.nextInt(this.size);
+            this.columns[i * 2 + 1] = random.nextInt(this.size);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void getBlockState(Blackhole blackhole) {
+        MapTemplate template = this.frozen;
+        for (BlockPos pos : this.positions) {
+            blackhole.consume(template.getBlockState(pos));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void getBlockStateOffHeap(Blackhole blackhole) {
+        MapTemplate template = this.offHeap;
+        for (BlockPos pos : this.positions) {
+            blackhole.consume(template.getBlockState(pos));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void setBlockState() {
+        MapTemplate template = this.template;
+        BlockPos[] positions = this.positions;
+        for (int i = 0; i < positions.length; i++) {
+            template.setBlockState(positions[i], STATES[i & 3]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public void getTopY(Blackhole blackhole) {
+        MapTemplate template = this.frozen;
+        int[] columns = this.columns;
+        for (int i = 0; i < columns.length; i += 2) {
+            blackhole.consume(template.getTopY(columns[i], columns[i + 1], Heightmap.Type.WORLD_SURFACE));
+        }
+    }
+}
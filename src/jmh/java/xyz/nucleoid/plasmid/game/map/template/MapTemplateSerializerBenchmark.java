@@ -0,0 +1,72 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.nbt.NbtIo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving and loading map templates in each format and codec. Templates are written to and read from memory,
+ * so that disk speed does not affect the results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MapTemplateSerializerBenchmark {
+    @Param({ "64", "128", "256" })
+    public int size;
+
+    @Param({ "GZIP", "LZ4", "NONE", "INDEXED" })
+    public String encoding;
+
+    private MapTemplate template;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.template = BenchmarkMaps.create(this.size).freeze();
+        this.bytes = this.save();
+    }
+
+    @Benchmark
+    public byte[] save() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(this.bytes != null ? this.bytes.length : 8192);
+        if (this.encoding.equals("INDEXED")) {
+            IndexedMapTemplateFormat.write(this.template, output);
+        } else {
+            MapTemplateCodec codec = MapTemplateCodec.valueOf(this.encoding);
+            try (OutputStream compressed = codec.openOutput(output)) {
+                NbtIo.write(MapTemplateSerializer.INSTANCE.save(this.template), new DataOutputStream(compressed));
+            }
+        }
+        return output.toByteArray();
+    }
+
+    @Benchmark
+    public MapTemplate load() throws IOException {
+        MapTemplate template = MapTemplate.createEmpty();
+        if (this.encoding.equals("INDEXED")) {
+            IndexedMapTemplateFormat.read(template, IndexedMapTemplateFormat.readBuffer(new ByteArrayInputStream(this.bytes)));
+        } else {
+            StreamingMapTemplateReader.read(template, new ByteArrayInputStream(this.bytes));
+        }
+        return template;
+    }
+}
@@ -0,0 +1,78 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.ChunkSection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures compiling a staging map into a map template: capturing the world sections within its bounds and building
+ * the template from them.
+ * <p>
+ * {@link StagingMapTemplate#compile(boolean)} needs a running server to read the world from, so this drives the same
+ * steps from world sections built in memory. Block entities and entities are not included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StagingMapCompileBenchmark {
+    @Param({ "64", "256" })
+    public int size;
+
+    @Param({ "true", "false" })
+    public boolean aligned;
+
+    private final Long2ObjectMap<ChunkSection> sections = new Long2ObjectOpenHashMap<>();
+    private BlockBounds worldBounds;
+    private BlockBounds localBounds;
+    private List<TemplateRegion> regions;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        MapTemplate template = BenchmarkMaps.create(this.size).freeze();
+
+        BlockPos origin = this.aligned ? new BlockPos(0, 16, 0) : new BlockPos(5, 19, 11);
+        this.localBounds = template.getBounds();
+        this.worldBounds = this.localBounds.offset(origin);
+        this.regions = new ArrayList<>(template.getTemplateRegionList("building"));
+
+        BlockPos.Mutable localPos = new BlockPos.Mutable();
+        for (BlockPos pos : this.worldBounds.iterate()) {
+            BlockState state = template.getBlockState(localPos.set(pos.getX() - origin.getX(), pos.getY() - origin.getY(), pos.getZ() - origin.getZ()));
+            if (state.isAir()) {
+                continue;
+            }
+
+            long sectionPos = ChunkSectionPos.asLong(pos.getX() >> 4, pos.getY() >> 4, pos.getZ() >> 4);
+            ChunkSection section = this.sections.computeIfAbsent(sectionPos, p -> new ChunkSection(ChunkSectionPos.unpackY(p) << 4));
+            section.setBlockState(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, state);
+        }
+    }
+
+    @Benchmark
+    public MapTemplate compile() {
+        StagingMapSnapshot snapshot = StagingMapSnapshot.capture(this.sections, this.worldBounds);
+        return StagingMapTemplate.build(snapshot, null, this.localBounds, new CompoundTag(), this.regions);
+    }
+}
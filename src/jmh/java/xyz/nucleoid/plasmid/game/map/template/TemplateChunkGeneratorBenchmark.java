@@ -0,0 +1,94 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.block.BlockMirror;
+import net.minecraft.block.BlockRotation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.registry.BuiltinRegistries;
+import net.minecraft.world.biome.BiomeKeys;
+import net.minecraft.world.biome.source.FixedBiomeSource;
+import net.minecraft.world.chunk.ProtoChunk;
+import net.minecraft.world.chunk.UpgradeData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures generating every chunk of a map template into fresh {@link ProtoChunk}s, as happens when a game world is
+ * opened.
+ * <p>
+ * The {@code placement} parameter selects between generating the template at a section-aligned origin, where sections
+ * are copied directly, at an unaligned origin, and through a rotated view, where blocks are copied one at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TemplateChunkGeneratorBenchmark {
+    @Param({ "64", "256" })
+    public int size;
+
+    @Param({ "aligned", "unaligned", "rotated" })
+    public String placement;
+
+    private TemplateChunkGenerator generator;
+    private ChunkPos[] chunks;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        MapTemplate template = BenchmarkMaps.create(this.size).freeze();
+
+        MapTemplateView view = template;
+        BlockPos origin = BlockPos.ORIGIN;
+        switch (this.placement) {
+            case "unaligned":
+                origin = new BlockPos(5, 3, 7);
+                break;
+            case "rotated":
+                view = template.transformed(BlockRotation.CLOCKWISE_90, BlockMirror.NONE, BlockPos.ORIGIN);
+                break;
+        }
+
+        FixedBiomeSource biomes = new FixedBiomeSource(BuiltinRegistries.BIOME.getOrThrow(BiomeKeys.THE_VOID));
+        this.generator = new TemplateChunkGenerator(biomes, view, origin);
+
+        BlockBounds bounds = view.getBounds().offset(origin);
+        BlockPos min = bounds.getMin();
+        BlockPos max = bounds.getMax();
+
+        int minChunkX = min.getX() >> 4;
+        int minChunkZ = min.getZ() >> 4;
+        int sizeX = (max.getX() >> 4) - minChunkX + 1;
+        int sizeZ = (max.getZ() >> 4) - minChunkZ + 1;
+
+        this.chunks = new ChunkPos[sizeX * sizeZ];
+        for (int z = 0; z < sizeZ; z++) {
+            for (int x = 0; x < sizeX; x++) {
+                this.chunks[x + z * sizeX] = new ChunkPos(minChunkX + x, minChunkZ + z);
+            }
+        }
+    }
+
+    @Benchmark
+    public void populateNoise(Blackhole blackhole) {
+        for (ChunkPos pos : this.chunks) {
+            // without baked lighting, the world and structures are never accessed
+            ProtoChunk chunk = new ProtoChunk(pos, UpgradeData.NO_UPGRADE_DATA);
+            this.generator.populateNoise(null, null, chunk);
+            blackhole.consume(chunk);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package xyz.nucleoid.plasmid.command;
 
+import com.google.common.collect.ImmutableList;
 import com.mojang.brigadier.Command;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.StringArgumentType;
@@ -8,6 +9,7 @@ import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.exceptions.DynamicCommandExceptionType;
 import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
 import com.mojang.brigadier.suggestion.SuggestionProvider;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import net.minecraft.command.CommandSource;
 import net.minecraft.command.argument.*;
 import net.minecraft.entity.EntityType;
@@ -53,6 +55,10 @@ public final class MapCommand {
             new TranslatableText("Map with id '%s' was not found!", arg)
     );
 
+    public static final DynamicCommandExceptionType UNKNOWN_COMPILE_OPTION = new DynamicCommandExceptionType(arg ->
+            new TranslatableText("Unknown compile option '%s'!", arg)
+    );
+
     public static final SimpleCommandExceptionType MAP_NOT_FOUND_AT = new SimpleCommandExceptionType(
             new LiteralText("No map found here")
     );
@@ -94,11 +100,19 @@ public final class MapCommand {
                 .then(literal("exit").executes(MapCommand::exitMap))
                 .then(literal("compile")
                     .then(argument("identifier", IdentifierArgumentType.identifier()).suggests(stagingSuggestions())
-                    .executes(context -> MapCommand.compileMap(context, false))
-                    .then(literal("withEntities")
-                        .executes(context -> MapCommand.compileMap(context, true))
+                    .executes(context -> MapCommand.compileMap(context, new CompileOptions()))
+                    .then(argument("options", StringArgumentType.greedyString()).suggests(compileOptionSuggestions())
+                        .executes(context -> MapCommand.compileMap(context, CompileOptions.parse(StringArgumentType.getString(context, "options"))))
                     )
                 ))
+                .then(literal("convert")
+                    .then(argument("identifier", IdentifierArgumentType.identifier())
+                    .executes(MapCommand::convertMap)
+                ))
+                .then(literal("stats")
+                    .then(argument("identifier", IdentifierArgumentType.identifier())
+                    .executes(MapCommand::showStats)
+                ))
                 .then(literal("region")
                     .then(literal("add")
                         .then(argument("marker", StringArgumentType.word())
@@ -265,13 +279,19 @@ public final class MapCommand {
         return Command.SINGLE_SUCCESS;
     }
 
-    private static int compileMap(CommandContext<ServerCommandSource> context, boolean includeEntities) throws CommandSyntaxException {
+    private static int compileMap(CommandContext<ServerCommandSource> context, CompileOptions options) throws CommandSyntaxException {
         ServerCommandSource source = context.getSource();
 
         StagingMapTemplate stagingMap = getMapFromArg(context);
 
-        MapTemplate template = stagingMap.compile(includeEntities);
-        CompletableFuture<Void> future = MapTemplateSerializer.INSTANCE.save(template, stagingMap.getIdentifier());
+        CompletableFuture<Void> future = stagingMap.compile(options.includeEntities, options.incremental, options.bakeLighting)
+                .thenCompose(template -> {
+                    CompletableFuture<Void> save = MapTemplateSerializer.INSTANCE.save(template, stagingMap.getIdentifier(), options.format, options.codec);
+                    if (options.chunkSnapshots) {
+                        save = save.thenCompose(v -> MapTemplateSerializer.INSTANCE.saveChunkSnapshots(template, stagingMap.getIdentifier()));
+                    }
+                    return save;
+                });
 
         future.handle((v, throwable) -> {
             if (throwable == null) {
@@ -286,6 +306,78 @@ public final class MapCommand {
         return Command.SINGLE_SUCCESS;
     }
 
+    private static int showStats(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+
+        Identifier identifier = IdentifierArgumentType.getIdentifier(context, "identifier");
+        CompletableFuture<MapTemplateStats> future = MapTemplateCache.INSTANCE.acquire(identifier).thenApply(handle -> {
+            try {
+                return handle.get().getStats();
+            } finally {
+                handle.close();
+            }
+        });
+
+        future.handle((stats, throwable) -> {
+            if (throwable == null) {
+                sendStats(source, identifier, stats);
+            } else {
+                Plasmid.LOGGER.error("Failed to load map '{}'", identifier, throwable);
+                source.sendError(new LiteralText("Failed to load map! An unexpected exception was thrown"));
+            }
+            return null;
+        });
+
+        return Command.SINGLE_SUCCESS;
+    }
+
+    private static void sendStats(ServerCommandSource source, Identifier identifier, MapTemplateStats stats) {
+        source.sendFeedback(new LiteralText("Stats for map '" + identifier + "':").formatted(Formatting.BOLD), false);
+        source.sendFeedback(new LiteralText(String.format(
+                " Sections: %d (%d encoded, %d shared)",
+                stats.getSectionCount(), stats.getEncodedSectionCount(), stats.getSharedSectionCount()
+        )), false);
+        source.sendFeedback(new LiteralText(String.format(
+                " Uniform: %.1f%%, empty: %.1f%%",
+                stats.getUniformRatio() * 100.0, stats.getEmptyRatio() * 100.0
+        )), false);
+        source.sendFeedback(new LiteralText(String.format(
+                " Palettes: %d containers, %d off-heap, %.1f bits per block on average, %d at most",
+                stats.getContainerSectionCount(), stats.getOffHeapSectionCount(), stats.getAveragePaletteBits(), stats.getMaxPaletteBits()
+        )), false);
+        source.sendFeedback(new LiteralText(String.format(
+                " Block entities: %d, entities: %d, regions: %d",
+                stats.getBlockEntityCount(), stats.getEntityCount(), stats.getRegionCount()
+        )), false);
+        source.sendFeedback(new LiteralText(String.format(
+                " Retained: %.1f KiB, off-heap: %.1f KiB",
+                stats.getEstimatedRetainedBytes() / 1024.0, stats.getOffHeapBytes() / 1024.0
+        )), false);
+        source.sendFeedback(new LiteralText(String.format(
+                " Load: %.2f ms, decode: %.2f ms",
+                stats.getLoadNanos() / 1_000_000.0, stats.getDecodeNanos() / 1_000_000.0
+        )), false);
+    }
+
+    private static int convertMap(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+
+        Identifier identifier = IdentifierArgumentType.getIdentifier(context, "identifier");
+        CompletableFuture<Void> future = MapTemplateSerializer.INSTANCE.convertToIndexed(identifier);
+
+        future.handle((v, throwable) -> {
+            if (throwable == null) {
+                source.sendFeedback(new LiteralText("Converted and saved map '" + identifier + "'"), false);
+            } else {
+                Plasmid.LOGGER.error("Failed to convert map '{}'", identifier, throwable);
+                source.sendError(new LiteralText("Failed to convert map! An unexpected exception was thrown"));
+            }
+            return null;
+        });
+
+        return Command.SINGLE_SUCCESS;
+    }
+
     private static int addRegion(CommandContext<ServerCommandSource> context) throws CommandSyntaxException {
         return addRegion(context, new CompoundTag());
     }
@@ -627,6 +719,14 @@ public final class MapCommand {
         return (ctx, builder) -> CommandSource.suggestIdentifiers(Registry.ENTITY_TYPE.getIds(), builder);
     }
 
+    private static SuggestionProvider<ServerCommandSource> compileOptionSuggestions() {
+        return (ctx, builder) -> {
+            String remaining = builder.getRemaining();
+            SuggestionsBuilder optionBuilder = builder.createOffset(builder.getStart() + remaining.lastIndexOf(' ') + 1);
+            return CommandSource.suggestMatching(CompileOptions.OPTIONS, optionBuilder);
+        };
+    }
+
     private static SuggestionProvider<ServerCommandSource> stagingSuggestions() {
         return (ctx, builder) -> {
             ServerWorld world = ctx.getSource().getWorld();
@@ -738,4 +838,51 @@ public final class MapCommand {
     private interface RegionPredicate {
         boolean test(TemplateRegion region, String marker, BlockPos pos);
     }
+
+    private static final class CompileOptions {
+        static final List<String> OPTIONS = ImmutableList.of("withEntities", "indexed", "full", "bakeLighting", "lz4", "uncompressed", "snapshots");
+
+        boolean includeEntities;
+        boolean incremental = true;
+        boolean bakeLighting;
+        boolean chunkSnapshots;
+        MapTemplateFormat format = MapTemplateFormat.NBT;
+        MapTemplateCodec codec = MapTemplateCodec.GZIP;
+
+        static CompileOptions parse(String input) throws CommandSyntaxException {
+            CompileOptions options = new CompileOptions();
+
+            for (String option : input.split(" ")) {
+                switch (option) {
+                    case "":
+                        break;
+                    case "withEntities":
+                        options.includeEntities = true;
+                        break;
+                    case "indexed":
+                        options.format = MapTemplateFormat.INDEXED;
+                        break;
+                    case "full":
+                        options.incremental = false;
+                        break;
+                    case "bakeLighting":
+                        options.bakeLighting = true;
+                        break;
+                    case "lz4":
+                        options.codec = MapTemplateCodec.LZ4;
+                        break;
+                    case "uncompressed":
+                        options.codec = MapTemplateCodec.NONE;
+                        break;
+                    case "snapshots":
+                        options.chunkSnapshots = true;
+                        break;
+                    default:
+                        throw UNKNOWN_COMPILE_OPTION.create(option);
+                }
+            }
+
+            return options;
+        }
+    }
 }
@@ -19,6 +19,7 @@ import xyz.nucleoid.plasmid.game.rule.RuleResult;
 import xyz.nucleoid.plasmid.util.Scheduler;
 import xyz.nucleoid.plasmid.world.bubble.BubbleWorld;
 import xyz.nucleoid.plasmid.world.bubble.BubbleWorldConfig;
+import xyz.nucleoid.plasmid.world.bubble.BubbleWorldPregenerator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -364,6 +365,29 @@ public final class GameWorld implements AutoCloseable {
         return this.bubble.getWorld();
     }
 
+    /**
+     * Returns a future which completes once every chunk requested by {@link BubbleWorldConfig#setPregenerate} has been
+     * generated. If pregeneration was not enabled, the returned future is already complete.
+     *
+     * <p>Games may wait on this before starting, so that the map is fully loaded once players begin to move around.
+     *
+     * @return a future which completes once this {@link GameWorld} has been pregenerated
+     */
+    public CompletableFuture<Void> getPregeneration() {
+        BubbleWorldPregenerator pregenerator = this.bubble.getPregenerator();
+        return pregenerator != null ? pregenerator.getFuture() : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Returns the fraction of chunks which have been pregenerated so far, from 0 to 1.
+     *
+     * @return the pregeneration progress of this {@link GameWorld}, or 1 if pregeneration was not enabled
+     */
+    public float getPregenerationProgress() {
+        BubbleWorldPregenerator pregenerator = this.bubble.getPregenerator();
+        return pregenerator != null ? pregenerator.getProgress() : 1.0F;
+    }
+
     public ConfiguredGame<?> getGame() {
         return this.configuredGame;
     }
@@ -0,0 +1,313 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.BlockMirror;
+import net.minecraft.block.BlockRotation;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.registry.RegistryKey;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.biome.Biome;
+import net.minecraft.world.biome.BiomeKeys;
+import org.jetbrains.annotations.Nullable;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A map template assembled from other templates, such as rooms and corridors, without copying any of their contents.
+ * <p>
+ * Each piece is a {@link MapTemplateView} placed with an offset, rotation and mirror. Queries are answered by the
+ * pieces whose bounds contain the queried position, found through an index of 16x16x16 cells. Where pieces overlap,
+ * the piece added last takes priority, unless it only has air at the queried position.
+ * <p>
+ * The pieces must not be modified while the composite is in use.
+ */
+public final class CompositeMapTemplate implements MapTemplateView {
+    private static final BlockState AIR = Blocks.AIR.getDefaultState();
+
+    private static final int MAX_PIECE_CELLS = 512;
+    private static final Piece[] NO_PIECES = new Piece[0];
+
+    private final Piece[] pieces;
+    private final Long2ObjectMap<Piece[]> cells;
+    private final Piece[] largePieces;
+
+    private final BlockBounds bounds;
+    private final RegistryKey<Biome> biome;
+    private final CompoundTag data;
+
+    private final Map<String, List<TemplateRegion>> regionsByMarker = new ConcurrentHashMap<>();
+
+    private CompositeMapTemplate(List<MapTemplateView> views, RegistryKey<Biome> biome, CompoundTag data) {
+        this.pieces = new Piece[views.size()];
+        for (int i = 0; i < this.pieces.length; i++) {
+            this.pieces[i] = new Piece(views.get(i), i);
+        }
+
+        this.biome = biome;
+        this.data = data;
+
+        Long2ObjectMap<List<Piece>> cells = new Long2ObjectOpenHashMap<>();
+        List<Piece> largePieces = new ArrayList<>();
+
+        BlockBounds bounds = null;
+        for (Piece piece : this.pieces) {
+            BlockBounds pieceBounds = piece.bounds;
+            bounds = bounds != null ? bounds.union(pieceBounds) : pieceBounds;
+
+            if (cellCount(pieceBounds) > MAX_PIECE_CELLS) {
+                largePieces.add(piece);
+                continue;
+            }
+
+            BlockPos min = pieceBounds.getMin();
+            BlockPos max = pieceBounds.getMax();
+            for (int cellZ = min.getZ() >> 4; cellZ <= max.getZ() >> 4; cellZ++) {
+                for (int cellY = min.getY() >> 4; cellY <= max.getY() >> 4; cellY++) {
+                    for (int cellX = min.getX() >> 4; cellX <= max.getX() >> 4; cellX++) {
+                        cells.computeIfAbsent(ChunkSectionPos.asLong(cellX, cellY, cellZ), p -> new ArrayList<>()).add(piece);
+                    }
+                }
+            }
+        }
+
+        this.cells = new Long2ObjectOpenHashMap<>(cells.size());
+        for (Long2ObjectMap.Entry<List<Piece>> entry : Long2ObjectMaps.fastIterable(cells)) {
+            this.cells.put(entry.getLongKey(), entry.getValue().toArray(NO_PIECES));
+        }
+
+        this.largePieces = largePieces.toArray(NO_PIECES);
+        this.bounds = bounds != null ? bounds : BlockBounds.EMPTY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private static long cellCount(BlockBounds bounds) {
+        BlockPos min = bounds.getMin();
+        BlockPos max = bounds.getMax();
+        return (long) ((max.getX() >> 4) - (min.getX() >> 4) + 1)
+                * ((max.getY() >> 4) - (min.getY() >> 4) + 1)
+                * ((max.getZ() >> 4) - (min.getZ() >> 4) + 1);
+    }
+
+    private Piece[] getCellAt(BlockPos pos) {
+        Piece[] cell = this.cells.get(MapTemplate.chunkPos(pos));
+        return cell != null ? cell : NO_PIECES;
+    }
+
+    // The block at a position is provided by the last added piece which has a block other than air there. The pieces
+    // of a cell and the large pieces are each kept in the order they were added, so both are walked together from the
+    // last added, and each piece is only queried once.
+
+    @Override
+    public BlockState getBlockState(BlockPos pos) {
+        Piece[] cell = this.getCellAt(pos);
+        Piece[] largePieces = this.largePieces;
+
+        int cellIndex = cell.length - 1;
+        int largeIndex = largePieces.length - 1;
+        while (cellIndex >= 0 || largeIndex >= 0) {
+            Piece piece;
+            if (largeIndex < 0 || (cellIndex >= 0 && cell[cellIndex].index > largePieces[largeIndex].index)) {
+                piece = cell[cellIndex--];
+            } else {
+                piece = largePieces[largeIndex--];
+            }
+
+            if (piece.bounds.contains(pos)) {
+                BlockState state = piece.view.getBlockState(pos);
+                if (!state.isAir()) {
+                    return state;
+                }
+            }
+        }
+
+        return AIR;
+    }
+
+    @Nullable
+    @Override
+    public CompoundTag getBlockEntityTag(BlockPos pos) {
+        Piece[] cell = this.getCellAt(pos);
+        Piece[] largePieces = this.largePieces;
+
+        int cellIndex = cell.length - 1;
+        int largeIndex = largePieces.length - 1;
+        while (cellIndex >= 0 || largeIndex >= 0) {
+            Piece piece;
+            if (largeIndex < 0 || (cellIndex >= 0 && cell[cellIndex].index > largePieces[largeIndex].index)) {
+                piece = cell[cellIndex--];
+            } else {
+                piece = largePieces[largeIndex--];
+            }
+
+            if (piece.bounds.contains(pos) && piece.view.containsBlock(pos)) {
+                return piece.view.getBlockEntityTag(pos);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Stream<CompoundTag> getEntitiesInChunk(int chunkX, int chunkY, int chunkZ) {
+        Piece[] cell = this.cells.get(ChunkSectionPos.asLong(chunkX, chunkY, chunkZ));
+
+        Stream<CompoundTag> entities = Stream.empty();
+        if (cell != null) {
+            for (Piece piece : cell) {
+                entities = Stream.concat(entities, piece.view.getEntitiesInChunk(chunkX, chunkY, chunkZ));
+            }
+        }
+
+        for (Piece piece : this.largePieces) {
+            entities = Stream.concat(entities, piece.view.getEntitiesInChunk(chunkX, chunkY, chunkZ));
+        }
+
+        return entities;
+    }
+
+    @Override
+    public int getTopY(int x, int z, Heightmap.Type heightmap) {
+        int topY = 0;
+
+        for (Piece piece : this.pieces) {
+            if (!piece.bounds.contains(x, z) || piece.view.isColumnEmpty(x, z, heightmap)) {
+                continue;
+            }
+
+            topY = Math.max(topY, piece.view.getTopY(x, z, heightmap));
+        }
+
+        return topY;
+    }
+
+    @Override
+    public boolean isColumnEmpty(int x, int z, Heightmap.Type heightmap) {
+        for (Piece piece : this.pieces) {
+            if (piece.bounds.contains(x, z) && !piece.view.isColumnEmpty(x, z, heightmap)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public BlockBounds getBounds() {
+        return this.bounds;
+    }
+
+    @Override
+    public RegistryKey<Biome> getBiome() {
+        return this.biome;
+    }
+
+    @Override
+    public CompoundTag getData() {
+        return this.data;
+    }
+
+    @Override
+    public List<TemplateRegion> getTemplateRegionList(String marker) {
+        return this.regionsByMarker.computeIfAbsent(marker, m -> {
+            List<TemplateRegion> regions = new ArrayList<>();
+            for (Piece piece : this.pieces) {
+                regions.addAll(piece.view.getTemplateRegionList(m));
+            }
+            return Collections.unmodifiableList(regions);
+        });
+    }
+
+    // regions may extend outside of the blocks of their piece, so every piece is asked rather than using the cells
+
+    @Override
+    public void forEachRegionAt(BlockPos pos, Consumer<TemplateRegion> consumer) {
+        for (Piece piece : this.pieces) {
+            piece.view.forEachRegionAt(pos, consumer);
+        }
+    }
+
+    @Override
+    public void forEachRegionIntersecting(BlockBounds bounds, Consumer<TemplateRegion> consumer) {
+        for (Piece piece : this.pieces) {
+            piece.view.forEachRegionIntersecting(bounds, consumer);
+        }
+    }
+
+    private static final class Piece {
+        final MapTemplateView view;
+        final BlockBounds bounds;
+        // the order this piece was added in, where later pieces take priority
+        final int index;
+
+        Piece(MapTemplateView view, int index) {
+            this.view = view;
+            this.bounds = view.getBounds();
+            this.index = index;
+        }
+    }
+
+    public static final class Builder {
+        private final List<MapTemplateView> pieces = new ArrayList<>();
+        private RegistryKey<Biome> biome = BiomeKeys.THE_VOID;
+        private CompoundTag data = new CompoundTag();
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a piece to the composite, moved so that the minimum corner of its bounds lies at the minimum corner of
+         * its own bounds plus the given offset.
+         *
+         * @param piece the template to add
+         * @param offset the offset to move the piece by
+         * @return this builder
+         */
+        public Builder add(MapTemplateView piece, BlockPos offset) {
+            return this.add(piece, offset, BlockRotation.NONE, BlockMirror.NONE);
+        }
+
+        /**
+         * Adds a piece to the composite with the given rotation and mirror applied.
+         *
+         * @param piece the template to add
+         * @param offset the offset to move the piece by
+         * @param rotation the rotation to apply to the piece
+         * @param mirror the mirror to apply to the piece
+         * @return this builder
+         * @see MapTemplateView#transformed(BlockRotation, BlockMirror, BlockPos)
+         */
+        public Builder add(MapTemplateView piece, BlockPos offset, BlockRotation rotation, BlockMirror mirror) {
+            this.pieces.add(piece.transformed(rotation, mirror, offset));
+            return this;
+        }
+
+        public Builder setBiome(RegistryKey<Biome> biome) {
+            this.biome = biome;
+            return this;
+        }
+
+        public Builder setData(CompoundTag data) {
+            this.data = data;
+            return this;
+        }
+
+        public CompositeMapTemplate build() {
+            return new CompositeMapTemplate(new ArrayList<>(this.pieces), this.biome, this.data);
+        }
+    }
+}
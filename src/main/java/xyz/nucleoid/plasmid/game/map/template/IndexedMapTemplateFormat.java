@@ -0,0 +1,171 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes map templates in the {@link MapTemplateFormat#INDEXED} format.
+ * <p>
+ * The file starts with a header holding the template metadata and a table of chunk offsets, followed by the
+ * uncompressed NBT of every chunk. This lets the file be memory-mapped, with each {@link MapTemplate.Chunk} only
+ * decoded when it is first accessed.
+ *
+ * <pre>
+ * int  magic
+ * int  version
+ * int  metadata length, followed by the metadata as uncompressed NBT
+ * int  chunk count
+ * for each chunk: long section pos, int offset from the start of the file, int length
+ * chunk data
+ * </pre>
+ * <p>
+ * Chunks with identical data are stored once, and their index entries share the same offset. Block entities are
+ * stored with their chunk, so they are also only decoded when the chunk is first accessed.
+ */
+final class IndexedMapTemplateFormat {
+    private static final int MAGIC = 0x504D5449;
+    // version 2 stores block entities with their chunks rather than in the metadata
+    private static final int VERSION = 2;
+    private static final int MIN_VERSION = 1;
+
+    private static final int HEADER_BYTES = Integer.BYTES * 4;
+    private static final int INDEX_ENTRY_BYTES = Long.BYTES + Integer.BYTES * 2;
+
+    private IndexedMapTemplateFormat() {
+    }
+
+    static void write(MapTemplate template, OutputStream output) throws IOException {
+        byte[] metadata = encode(MapTemplateSerializer.saveMetadata(template, new CompoundTag()));
+
+        int chunkCount = template.chunks.size();
+        long[] positions = new long[chunkCount];
+        byte[][] chunks = new byte[chunkCount][];
+
+        int index = 0;
+        for (Long2ObjectMap.Entry<MapTemplate.Chunk> entry : Long2ObjectMaps.fastIterable(template.chunks)) {
+            CompoundTag chunkTag = new CompoundTag();
+            entry.getValue().serialize(chunkTag);
+
+            positions[index] = entry.getLongKey();
+            chunks[index] = encode(chunkTag);
+            index++;
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(metadata.length);
+        data.write(metadata);
+        data.writeInt(chunkCount);
+
+        // identical chunks are only written once, with every index entry pointing at the same data
+        Map<ByteBuffer, Integer> offsets = new HashMap<>();
+        List<byte[]> uniqueChunks = new ArrayList<>();
+
+        long offset = HEADER_BYTES + metadata.length + (long) chunkCount * INDEX_ENTRY_BYTES;
+        for (int i = 0; i < chunkCount; i++) {
+            byte[] chunk = chunks[i];
+
+            Integer chunkOffset = offsets.get(ByteBuffer.wrap(chunk));
+            if (chunkOffset == null) {
+                chunkOffset = Math.toIntExact(offset);
+                offsets.put(ByteBuffer.wrap(chunk), chunkOffset);
+                uniqueChunks.add(chunk);
+                offset += chunk.length;
+            }
+
+            data.writeLong(positions[i]);
+            data.writeInt(chunkOffset);
+            data.writeInt(chunk.length);
+        }
+
+        for (byte[] chunk : uniqueChunks) {
+            data.write(chunk);
+        }
+
+        data.flush();
+    }
+
+    static void read(MapTemplate template, ByteBuffer buffer) throws IOException {
+        buffer = buffer.duplicate();
+
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Not an indexed map template");
+        }
+
+        int version = buffer.getInt();
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new IOException("Unsupported indexed map template version: " + version);
+        }
+
+        int metadataLength = buffer.getInt();
+        CompoundTag metadata = decode(slice(buffer, buffer.position(), metadataLength));
+        buffer.position(buffer.position() + metadataLength);
+
+        int chunkCount = buffer.getInt();
+        for (int i = 0; i < chunkCount; i++) {
+            long pos = buffer.getLong();
+            int offset = buffer.getInt();
+            int length = buffer.getInt();
+
+            template.chunks.put(pos, MapTemplate.Chunk.lazy(slice(buffer, offset, length), template.decodeNanos));
+        }
+
+        MapTemplateSerializer.loadMetadata(template, metadata);
+    }
+
+    /**
+     * Returns a buffer over the whole contents of the given stream. If the stream reads from a file, the file is
+     * memory-mapped rather than being read onto the heap.
+     *
+     * @param input the stream to read
+     * @return a buffer of the stream contents
+     */
+    static ByteBuffer readBuffer(InputStream input) throws IOException {
+        if (input instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) input).getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return ByteBuffer.wrap(IOUtils.toByteArray(input));
+    }
+
+    static CompoundTag decode(ByteBuffer buffer) throws IOException {
+        return NbtIo.read(new ByteBufInputStream(Unpooled.wrappedBuffer(buffer.duplicate())));
+    }
+
+    private static byte[] encode(CompoundTag tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NbtIo.write(tag, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IOException("Invalid offset in indexed map template: " + offset + " (" + length + " bytes)");
+        }
+
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return slice.slice();
+    }
+}
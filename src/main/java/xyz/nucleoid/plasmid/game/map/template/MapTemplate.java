@@ -3,6 +3,11 @@ package xyz.nucleoid.plasmid.game.map.template;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectMap;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectMaps;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectOpenHashMap;
 import net.fabricmc.fabric.api.util.NbtType;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
@@ -27,10 +32,23 @@ import net.minecraft.world.chunk.IdListPalette;
 import net.minecraft.world.chunk.Palette;
 import net.minecraft.world.chunk.PalettedContainer;
 import org.jetbrains.annotations.Nullable;
+import xyz.nucleoid.plasmid.mixin.game.map.PalettedContainerAccess;
 import xyz.nucleoid.plasmid.util.BlockBounds;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
@@ -41,19 +59,44 @@ import java.util.stream.Stream;
  * <p>
  * It can be loaded from resources with {@link MapTemplateSerializer#load(Identifier)},
  * and used for generation with {@link TemplateChunkGenerator}
+ * <p>
+ * Once {@link MapTemplate#freeze() frozen}, a template can no longer be modified and may be read from any number of
+ * threads at once. Tags returned from a frozen template are copies, so callers are free to modify them.
  */
-public final class MapTemplate {
+public final class MapTemplate implements MapTemplateView {
     private static final BlockState AIR = Blocks.AIR.getDefaultState();
 
+    private static final long TEMPLATE_OVERHEAD_BYTES = 1024;
+    private static final long CHUNK_OVERHEAD_BYTES = 96;
+    private static final long TAG_ESTIMATE_BYTES = 256;
+
     final Long2ObjectMap<Chunk> chunks = new Long2ObjectOpenHashMap<>();
-    final Long2ObjectMap<CompoundTag> blockEntities = new Long2ObjectOpenHashMap<>();
     final List<TemplateRegion> regions = new ArrayList<>();
+    private volatile TemplateRegionIndex regionIndex;
+    private volatile TemplateBlockIndex blockIndex;
+    private volatile TemplateEntityIndex entityIndex;
+
+    private final TemplateHeightmap[] heightmaps = new TemplateHeightmap[Heightmap.Type.values().length];
 
     RegistryKey<Biome> biome = BiomeKeys.THE_VOID;
 
     BlockBounds bounds = null;
     private CompoundTag data = new CompoundTag();
 
+    // light levels baked when this template was compiled, or null if the lighting engine must light it
+    @Nullable
+    TemplateLighting lighting;
+
+    private volatile boolean frozen;
+
+    // time taken to load this template and to decode its chunks, reported through getStats
+    private volatile long loadNanos = -1;
+    final LongAdder decodeNanos = new LongAdder();
+
+    // the direct memory holding the blocks of chunks moved off-heap, or null if none have been
+    @Nullable
+    private volatile OffHeapSectionStore offHeapStore;
+
     private MapTemplate() {
     }
 
@@ -61,12 +104,57 @@ public final class MapTemplate {
         return new MapTemplate();
     }
 
+    /**
+     * Freezes this template, preventing any further modification. A frozen template is safe to share between threads,
+     * such as when generating chunks for several worlds from the same template at once.
+     *
+     * @return this template
+     */
+    public MapTemplate freeze() {
+        this.compactChunks();
+        this.deduplicateChunks();
+
+        if (this.bounds == null) {
+            this.bounds = this.computeBounds();
+        }
+
+        // regions may still be referenced by whoever added them, so the template keeps its own copies
+        synchronized (this.regions) {
+            this.regions.replaceAll(TemplateRegion::frozenCopy);
+            this.regionIndex = null;
+        }
+
+        this.frozen = true;
+        return this;
+    }
+
+    /**
+     * @return whether this template has been frozen and can no longer be modified
+     */
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+
+    private void assertMutable() {
+        if (this.frozen) {
+            throw new UnsupportedOperationException("Cannot modify a frozen map template");
+        }
+    }
+
+    /**
+     * @return whether light levels were baked into this template when it was compiled
+     */
+    public boolean hasBakedLighting() {
+        return this.lighting != null;
+    }
+
     /**
      * Sets the biome key of the map template.
      *
      * @param biome The biome key.
      */
     public void setBiome(RegistryKey<Biome> biome) {
+        this.assertMutable();
         this.biome = biome;
     }
 
@@ -75,17 +163,19 @@ public final class MapTemplate {
      *
      * @return The biome key.
      */
+    @Override
     public RegistryKey<Biome> getBiome() {
         return this.biome;
     }
 
     /**
-     * Gets the arbitrary data of the map.
+     * Gets the arbitrary data of the map. If this template is frozen, a copy of the data is returned.
      *
      * @return the data as a compound tag
      */
+    @Override
     public CompoundTag getData() {
-        return this.data;
+        return this.frozen ? this.data.copy() : this.data;
     }
 
     /**
@@ -94,30 +184,105 @@ public final class MapTemplate {
      * @param data the data as a compound tag
      */
     public void setData(CompoundTag data) {
+        this.assertMutable();
         this.data = data;
     }
 
     public void setBlockState(BlockPos pos, BlockState state) {
-        Chunk chunk = this.chunks.computeIfAbsent(chunkPos(pos), p -> new Chunk());
-        chunk.set(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, state);
+        this.assertMutable();
+
+        // any baked light levels can no longer be trusted once a block changes
+        this.lighting = null;
+        this.blockIndex = null;
+
+        long chunkPos = chunkPos(pos);
+        Chunk chunk = this.chunks.get(chunkPos);
+        if (chunk == null && !state.isAir()) {
+            chunk = new Chunk();
+            this.chunks.put(chunkPos, chunk);
+        }
+
+        if (chunk != null) {
+            chunk.set(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, state);
+            if (chunk.isEmpty()) {
+                this.chunks.remove(chunkPos);
+            }
+        }
+
+        for (TemplateHeightmap heightmap : this.heightmaps) {
+            if (heightmap != null) {
+                heightmap.trackUpdate(pos.getX(), pos.getY(), pos.getZ(), state);
+            }
+        }
 
         if (state.getBlock().hasBlockEntity()) {
             CompoundTag tag = new CompoundTag();
             tag.putString("id", "DUMMY");
-            this.blockEntities.put(pos.asLong(), tag);
+            tag.putInt("x", pos.getX());
+            tag.putInt("y", pos.getY());
+            tag.putInt("z", pos.getZ());
+            chunk.setBlockEntityTag(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, tag);
         }
     }
 
     public void setBlockEntity(BlockPos pos, @Nullable BlockEntity entity) {
-        if (entity != null) {
-            CompoundTag entityTag = entity.toTag(new CompoundTag());
-            entityTag.putInt("x", pos.getX());
-            entityTag.putInt("y", pos.getY());
-            entityTag.putInt("z", pos.getZ());
+        this.assertMutable();
 
-            this.blockEntities.put(pos.asLong(), entityTag);
+        if (entity != null) {
+            this.setBlockEntityTag(pos, entity.toTag(new CompoundTag()));
         } else {
-            this.blockEntities.remove(pos.asLong());
+            Chunk chunk = this.chunks.get(chunkPos(pos));
+            if (chunk != null) {
+                chunk.removeBlockEntityTag(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15);
+                if (chunk.isEmpty()) {
+                    this.chunks.remove(chunkPos(pos));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the serialized block entity at the given position. The position stored in the tag is replaced with the
+     * given position.
+     *
+     * @param pos the position relative to this template
+     * @param entityTag the serialized block entity
+     */
+    void setBlockEntityTag(BlockPos pos, CompoundTag entityTag) {
+        this.assertMutable();
+
+        entityTag.putInt("x", pos.getX());
+        entityTag.putInt("y", pos.getY());
+        entityTag.putInt("z", pos.getZ());
+
+        Chunk chunk = this.chunks.computeIfAbsent(chunkPos(pos), p -> new Chunk());
+        chunk.setBlockEntityTag(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15, entityTag);
+    }
+
+    /**
+     * Replaces the blocks of the chunk at the given chunk position with the contents of the given container.
+     *
+     * @param chunkX The chunk X-coordinate.
+     * @param chunkY The chunk Y-coordinate.
+     * @param chunkZ The chunk Z-coordinate.
+     * @param container The container to copy from.
+     */
+    void copySection(int chunkX, int chunkY, int chunkZ, PalettedContainer<BlockState> container) {
+        this.assertMutable();
+
+        this.lighting = null;
+        this.blockIndex = null;
+
+        long chunkPos = ChunkSectionPos.asLong(chunkX, chunkY, chunkZ);
+        Chunk chunk = this.chunks.computeIfAbsent(chunkPos, p -> new Chunk());
+        chunk.copyFrom(container);
+        if (chunk.isEmpty()) {
+            this.chunks.remove(chunkPos);
+        }
+
+        // the blocks were replaced wholesale, so any heightmaps which have been built can't be updated incrementally
+        synchronized (this.heightmaps) {
+            Arrays.fill(this.heightmaps, null);
         }
     }
 
@@ -126,15 +291,23 @@ public final class MapTemplate {
     }
 
     public TemplateRegion addRegion(String marker, BlockBounds bounds, CompoundTag tag) {
+        this.assertMutable();
+
         TemplateRegion region = new TemplateRegion(marker, bounds, tag);
-        this.regions.add(region);
+        this.addRegion(region);
         return region;
     }
 
     public void addRegion(TemplateRegion region) {
-        this.regions.add(region);
+        this.assertMutable();
+
+        synchronized (this.regions) {
+            this.regions.add(region);
+            this.regionIndex = null;
+        }
     }
 
+    @Override
     public BlockState getBlockState(BlockPos pos) {
         Chunk chunk = this.chunks.get(chunkPos(pos));
         if (chunk != null) {
@@ -144,8 +317,46 @@ public final class MapTemplate {
     }
 
     @Nullable
+    @Override
     public CompoundTag getBlockEntityTag(BlockPos pos) {
-        return this.blockEntities.get(pos.asLong());
+        CompoundTag tag = this.getStoredBlockEntityTag(pos);
+        if (tag != null && this.frozen) {
+            return tag.copy();
+        }
+        return tag;
+    }
+
+    /**
+     * Creates a copy of the block entity tag at the given template position, moved to the given world position.
+     * The tag stored in this template is left untouched.
+     *
+     * @param pos the position of the block entity within this template
+     * @return the moved copy of the block entity tag, or null if there is no block entity at the given position
+     */
+    @Nullable
+    CompoundTag createBlockEntityTag(BlockPos pos, int worldX, int worldY, int worldZ) {
+        CompoundTag tag = this.getStoredBlockEntityTag(pos);
+        if (tag == null) {
+            return null;
+        }
+        return createWorldBlockEntityTag(tag, worldX, worldY, worldZ);
+    }
+
+    static CompoundTag createWorldBlockEntityTag(CompoundTag tag, int worldX, int worldY, int worldZ) {
+        CompoundTag worldTag = tag.copy();
+        worldTag.putInt("x", worldX);
+        worldTag.putInt("y", worldY);
+        worldTag.putInt("z", worldZ);
+        return worldTag;
+    }
+
+    @Nullable
+    private CompoundTag getStoredBlockEntityTag(BlockPos pos) {
+        Chunk chunk = this.chunks.get(chunkPos(pos));
+        if (chunk == null) {
+            return null;
+        }
+        return chunk.getBlockEntityTag(pos.getX() & 15, pos.getY() & 15, pos.getZ() & 15);
     }
 
     /**
@@ -157,82 +368,203 @@ public final class MapTemplate {
      * @param pos The entity position relatives to the map.
      */
     void addEntity(Entity entity, Vec3d pos) {
-        this.chunks.computeIfAbsent(chunkPos(pos), p -> new Chunk()).addEntity(entity, pos);
+        CompoundTag tag = Chunk.createEntityTag(entity, pos);
+        if (tag != null) {
+            this.addEntityTag(pos, tag);
+        }
+    }
+
+    /**
+     * Adds a serialized entity to the map template.
+     *
+     * @param pos The entity position relative to the map.
+     * @param tag The entity tag, as created by {@link Chunk#createEntityTag(Entity, Vec3d)}.
+     */
+    void addEntityTag(Vec3d pos, CompoundTag tag) {
+        this.assertMutable();
+        this.chunks.computeIfAbsent(chunkPos(pos), p -> new Chunk()).addEntityTag(tag);
+        this.entityIndex = null;
     }
 
     /**
      * Returns a stream of serialized entities from a chunk.
+     * If this template is frozen, the returned tags are copies.
      *
      * @param chunkX The chunk X-coordinate.
      * @param chunkY The chunk Y-coordinate.
      * @param chunkZ The chunk Z-coordinate.
      * @return The stream of entities.
      */
+    @Override
     public Stream<CompoundTag> getEntitiesInChunk(int chunkX, int chunkY, int chunkZ) {
         Chunk chunk = this.chunks.get(ChunkSectionPos.asLong(chunkX, chunkY, chunkZ));
         if (chunk == null)
             return Stream.empty();
-        return chunk.getEntities().stream();
+
+        Stream<CompoundTag> entities = chunk.getEntities().stream();
+        return this.frozen ? entities.map(CompoundTag::copy) : entities;
+    }
+
+    /**
+     * Returns the index over the entities of this template, building it if entities have been added since it was last
+     * used.
+     *
+     * @return the entity index
+     */
+    TemplateEntityIndex getEntityIndex() {
+        TemplateEntityIndex index = this.entityIndex;
+        if (index == null) {
+            index = new TemplateEntityIndex(this.chunks);
+            this.entityIndex = index;
+        }
+        return index;
     }
 
-    // TODO: store / lookup more efficiently?
+    @Override
     public int getTopY(int x, int z, Heightmap.Type heightmap) {
-        Predicate<BlockState> predicate = heightmap.getBlockPredicate();
+        return Math.max(this.getHeightmap(heightmap).get(x, z) - 1, 0);
+    }
+
+    @Override
+    public boolean isColumnEmpty(int x, int z, Heightmap.Type heightmap) {
+        return this.getHeightmap(heightmap).get(x, z) == 0;
+    }
 
-        BlockPos.Mutable mutablePos = new BlockPos.Mutable(x, 0, z);
-        for (int y = 255; y >= 0; y--) {
-            mutablePos.setY(y);
+    /**
+     * Returns the heightmap of the given type for this template, building it on first access.
+     *
+     * @param type the heightmap type
+     * @return the heightmap
+     */
+    TemplateHeightmap getHeightmap(Heightmap.Type type) {
+        int index = type.ordinal();
 
-            BlockState state = this.getBlockState(mutablePos);
-            if (predicate.test(state)) {
-                return y;
+        TemplateHeightmap heightmap = this.heightmaps[index];
+        if (heightmap == null) {
+            synchronized (this.heightmaps) {
+                heightmap = this.heightmaps[index];
+                if (heightmap == null) {
+                    heightmap = new TemplateHeightmap(this, type);
+                    this.heightmaps[index] = heightmap;
+                }
             }
         }
 
-        return 0;
+        return heightmap;
     }
 
-    public BlockPos getTopPos(int x, int z, Heightmap.Type heightmap) {
-        int y = this.getTopY(x, z, heightmap);
-        return new BlockPos(x, y, z);
+    /**
+     * Returns the index over the regions of this template, building it if regions have been added since it was last used.
+     *
+     * @return the region index
+     */
+    private TemplateRegionIndex getRegionIndex() {
+        TemplateRegionIndex index = this.regionIndex;
+        if (index == null) {
+            synchronized (this.regions) {
+                index = this.regionIndex;
+                if (index == null) {
+                    index = new TemplateRegionIndex(this.regions);
+                    this.regionIndex = index;
+                }
+            }
+        }
+        return index;
     }
 
-    public Stream<TemplateRegion> getTemplateRegions(String marker) {
-        return this.regions.stream()
-                .filter(region -> region.getMarker().equals(marker));
+    /**
+     * Returns every region with the given marker, in the order they were added.
+     *
+     * @param marker the region marker
+     * @return an unmodifiable list of the regions with the given marker
+     */
+    @Override
+    public List<TemplateRegion> getTemplateRegionList(String marker) {
+        return this.getRegionIndex().getByMarker(marker);
     }
 
-    public Stream<BlockBounds> getRegions(String marker) {
-        return this.getTemplateRegions(marker)
-                .map(TemplateRegion::getBounds);
+    /**
+     * Calls the given consumer for every region which contains the given position, without allocating a list.
+     *
+     * @param pos the position relative to this template
+     * @param consumer the consumer to accept each region
+     */
+    @Override
+    public void forEachRegionAt(BlockPos pos, Consumer<TemplateRegion> consumer) {
+        this.getRegionIndex().forEachAt(pos.getX(), pos.getY(), pos.getZ(), consumer);
     }
 
-    @Nullable
-    public TemplateRegion getFirstTemplateRegion(String marker) {
-        return this.getTemplateRegions(marker).findFirst().orElse(null);
+    /**
+     * Calls the given consumer once for every region which intersects the given bounds, without allocating a list.
+     *
+     * @param bounds the bounds relative to this template
+     * @param consumer the consumer to accept each region
+     */
+    @Override
+    public void forEachRegionIntersecting(BlockBounds bounds, Consumer<TemplateRegion> consumer) {
+        this.getRegionIndex().forEachIntersecting(bounds, consumer);
     }
 
-    @Nullable
-    public BlockBounds getFirstRegion(String marker) {
-        return this.getRegions(marker).findFirst().orElse(null);
+    /**
+     * Returns the position of every instance of the given block in this template, such as to find marker blocks.
+     * <p>
+     * The positions are found the first time each block is asked for, and are kept until this template is modified.
+     * Chunks which do not contain the block are skipped without testing any of their positions.
+     *
+     * @param block the block to find
+     * @return an unmodifiable list of positions relative to this template, packed with {@link BlockPos#asLong()}
+     */
+    public LongList findAll(Block block) {
+        TemplateBlockIndex index = this.blockIndex;
+        if (index == null) {
+            index = new TemplateBlockIndex(this.chunks);
+            this.blockIndex = index;
+        }
+        return index.get(block);
+    }
+
+    /**
+     * Calls the given consumer for every block in this template other than air. Chunks which only contain air are
+     * skipped entirely.
+     * <p>
+     * The position passed to the consumer is mutable and is moved to the next block after the consumer returns, so it
+     * must be copied with {@link BlockPos#toImmutable()} to be kept.
+     *
+     * @param consumer the consumer to accept each position and block
+     */
+    public void forEachNonAir(BiConsumer<BlockPos, BlockState> consumer) {
+        Predicate<BlockState> predicate = state -> !state.isAir();
+        BlockPos.Mutable pos = new BlockPos.Mutable();
+
+        for (Long2ObjectMap.Entry<Chunk> entry : Long2ObjectMaps.fastIterable(this.chunks)) {
+            long chunkPos = entry.getLongKey();
+            int minX = ChunkSectionPos.unpackX(chunkPos) << 4;
+            int minY = ChunkSectionPos.unpackY(chunkPos) << 4;
+            int minZ = ChunkSectionPos.unpackZ(chunkPos) << 4;
+
+            entry.getValue().forEachMatching(predicate, minX, minY, minZ, pos, consumer);
+        }
     }
 
+    @Override
     public boolean containsBlock(BlockPos pos) {
         return this.getBlockState(pos) != AIR;
     }
 
-    private static long chunkPos(BlockPos pos) {
+    static long chunkPos(BlockPos pos) {
         return ChunkSectionPos.asLong(pos.getX() >> 4, pos.getY() >> 4, pos.getZ() >> 4);
     }
 
-    private static long chunkPos(Vec3d pos) {
+    static long chunkPos(Vec3d pos) {
         return ChunkSectionPos.asLong(MathHelper.floor(pos.getX()) >> 4, MathHelper.floor(pos.getY()) >> 4, MathHelper.floor(pos.getZ()) >> 4);
     }
 
     public void setBounds(BlockBounds bounds) {
+        this.assertMutable();
         this.bounds = bounds;
     }
 
+    @Override
     public BlockBounds getBounds() {
         if (this.bounds == null) {
             this.bounds = this.computeBounds();
@@ -240,6 +572,135 @@ public final class MapTemplate {
         return this.bounds;
     }
 
+    /**
+     * Switches every uniform chunk to its compact form and drops chunks which only contain air.
+     * Chunks which have not been decoded yet are left untouched.
+     */
+    void compactChunks() {
+        ObjectIterator<Long2ObjectMap.Entry<Chunk>> iterator = Long2ObjectMaps.fastIterator(this.chunks);
+        while (iterator.hasNext()) {
+            Chunk chunk = iterator.next().getValue();
+            if (chunk.isDecoded()) {
+                chunk.compact();
+                if (chunk.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes chunks with identical blocks share a single container. Chunks which have not been decoded yet are left
+     * untouched.
+     */
+    void deduplicateChunks() {
+        Map<PalettedContainers.ContentKey, Chunk> unique = new HashMap<>();
+        for (Chunk chunk : this.chunks.values()) {
+            PalettedContainers.ContentKey key = chunk.getBlocksKey();
+            if (key == null) {
+                continue;
+            }
+
+            Chunk existing = unique.putIfAbsent(key, chunk);
+            if (existing != null) {
+                chunk.shareBlocksWith(existing);
+            }
+        }
+    }
+
+    /**
+     * Moves the blocks of every chunk stored in a paletted container into direct memory, leaving only their palettes
+     * on the heap. This is intended for very large templates, whose block data would otherwise fill the old generation
+     * of the heap. Chunks which have not yet been decoded are decoded first.
+     * <p>
+     * Blocks are still read through {@link MapTemplate#getBlockState(BlockPos)} as before, and a chunk which is
+     * modified afterwards is moved back onto the heap. This must not be called while the template is being read from
+     * other threads, so should be done before a template is shared.
+     *
+     * @return this template
+     */
+    public MapTemplate moveSectionsOffHeap() {
+        OffHeapSectionStore store = this.offHeapStore;
+        if (store == null) {
+            this.offHeapStore = store = new OffHeapSectionStore();
+        }
+
+        Map<PalettedContainer<BlockState>, OffHeapSection> packed = new IdentityHashMap<>();
+        for (Chunk chunk : this.chunks.values()) {
+            chunk.moveOffHeap(store, packed);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the number of bytes of direct memory reserved for the blocks of chunks moved off-heap
+     */
+    long getOffHeapBytes() {
+        OffHeapSectionStore store = this.offHeapStore;
+        return store != null ? store.getReservedBytes() : 0;
+    }
+
+    /**
+     * Estimates the number of heap bytes retained by this template. Chunks which have not yet been decoded from a
+     * memory-mapped file are only counted by their object overhead.
+     *
+     * @return the estimated size in bytes
+     */
+    long estimateRetainedBytes() {
+        return this.estimateBytes(false);
+    }
+
+    /**
+     * Estimates the number of heap bytes this template would retain once every chunk is decoded. Chunks which have not
+     * yet been decoded are counted by the length of their encoded data, which holds the same packed block data.
+     *
+     * @return the estimated size in bytes
+     */
+    long estimateDecodedBytes() {
+        return this.estimateBytes(true);
+    }
+
+    private long estimateBytes(boolean decoded) {
+        long bytes = TEMPLATE_OVERHEAD_BYTES;
+
+        Set<Object> sharedContainers = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Chunk chunk : this.chunks.values()) {
+            bytes += chunk.estimateRetainedBytes(sharedContainers, decoded);
+        }
+
+        bytes += (long) this.regions.size() * TAG_ESTIMATE_BYTES;
+
+        TemplateLighting lighting = this.lighting;
+        if (lighting != null) {
+            bytes += lighting.estimateRetainedBytes();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Takes a snapshot of the contents and memory usage of this template. Chunks which have not yet been decoded are
+     * not decoded by this call.
+     *
+     * @return the statistics snapshot
+     */
+    public MapTemplateStats getStats() {
+        return MapTemplateStats.of(this);
+    }
+
+    void setLoadNanos(long loadNanos) {
+        this.loadNanos = loadNanos;
+    }
+
+    long getLoadNanos() {
+        return this.loadNanos;
+    }
+
+    long getDecodeNanos() {
+        return this.decodeNanos.sum();
+    }
+
     private BlockBounds computeBounds() {
         int minChunkX = Integer.MAX_VALUE;
         int minChunkY = Integer.MAX_VALUE;
@@ -271,23 +732,570 @@ public final class MapTemplate {
 
     /**
      * Represents a 16x16x16 holder of block states and entities.
+     * <p>
+     * A chunk may be backed by an encoded buffer, in which case it is only decoded when it is first accessed.
+     * <p>
+     * A chunk made up of a single block state only stores that state, and switches to a full paletted container once
+     * a different block is set. A chunk that becomes entirely air through writes switches back.
+     * <p>
+     * Chunks with identical blocks may share a single container, which is copied before either chunk is modified.
      */
     static class Chunk {
         private static final Palette<BlockState> PALETTE = new IdListPalette<>(Block.STATE_IDS, Blocks.AIR.getDefaultState());
 
-        private final PalettedContainer<BlockState> container = new PalettedContainer<>(
-                PALETTE, Block.STATE_IDS,
-                NbtHelper::toBlockState, NbtHelper::fromBlockState,
-                Blocks.AIR.getDefaultState()
-        );
-        private final List<CompoundTag> entities = new ArrayList<>();
+        static final String BLOCKS_REF_KEY = "blocks_ref";
+
+        // the state of every block in this chunk, or null if the blocks are stored in the container or off-heap
+        @Nullable
+        private BlockState uniform;
+        @Nullable
+        private PalettedContainer<BlockState> container;
+        // the blocks of this chunk when packed into direct memory, which can only be read
+        @Nullable
+        private OffHeapSection offHeap;
+        private int nonAirCount;
+        private boolean sharedContainer;
+
+        private List<CompoundTag> entities;
+
+        // block entities keyed by their index within this chunk, with a bit set in the mask for each present index
+        @Nullable
+        private Short2ObjectMap<CompoundTag> blockEntities;
+        @Nullable
+        private long[] blockEntityMask;
+
+        private volatile ByteBuffer encoded;
+        // accumulates the time taken to decode this chunk, released once decoded
+        @Nullable
+        private LongAdder decodeNanos;
+
+        Chunk() {
+            this.uniform = AIR;
+            this.entities = new ArrayList<>();
+        }
+
+        private Chunk(ByteBuffer encoded, LongAdder decodeNanos) {
+            this.encoded = encoded;
+            this.decodeNanos = decodeNanos;
+        }
+
+        /**
+         * Creates a chunk which will be decoded from the given buffer when it is first accessed.
+         * The buffer must contain a chunk tag as written by {@link Chunk#serialize(CompoundTag)}.
+         *
+         * @param encoded The encoded chunk tag.
+         * @param decodeNanos The counter to add the time taken to decode the chunk to.
+         * @return The lazily decoded chunk.
+         */
+        static Chunk lazy(ByteBuffer encoded, LongAdder decodeNanos) {
+            return new Chunk(encoded, decodeNanos);
+        }
+
+        static PalettedContainer<BlockState> createContainer() {
+            return new PalettedContainer<>(
+                    PALETTE, Block.STATE_IDS,
+                    NbtHelper::toBlockState, NbtHelper::fromBlockState,
+                    Blocks.AIR.getDefaultState()
+            );
+        }
+
+        private void ensureDecoded() {
+            if (this.encoded != null) {
+                synchronized (this) {
+                    ByteBuffer encoded = this.encoded;
+                    if (encoded != null) {
+                        long start = System.nanoTime();
+                        this.decode(encoded);
+                        this.decodeNanos.add(System.nanoTime() - start);
+
+                        this.decodeNanos = null;
+                        this.encoded = null;
+                    }
+                }
+            }
+        }
+
+        private void decode(ByteBuffer encoded) {
+            CompoundTag tag;
+            try {
+                tag = IndexedMapTemplateFormat.decode(encoded);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to decode map template chunk", e);
+            }
+
+            this.uniform = AIR;
+            this.entities = new ArrayList<>();
+            this.blockEntities = null;
+            this.blockEntityMask = null;
+            this.read(tag);
+        }
 
         public void set(int x, int y, int z, BlockState state) {
-            this.container.set(x, y, z, state);
+            this.ensureDecoded();
+            this.ensureOnHeap();
+
+            PalettedContainer<BlockState> container = this.container;
+            if (container == null) {
+                if (state == this.uniform) {
+                    return;
+                }
+                container = this.inflate();
+            } else if (this.sharedContainer) {
+                if (container.get(x, y, z) == state) {
+                    return;
+                }
+                container = this.unshare();
+            }
+
+            BlockState previous = container.set(x, y, z, state);
+            if (!previous.isAir()) this.nonAirCount--;
+            if (!state.isAir()) this.nonAirCount++;
+
+            if (this.nonAirCount == 0) {
+                this.setUniform(AIR);
+            }
         }
 
         public BlockState get(int x, int y, int z) {
-            return this.container.get(x, y, z);
+            this.ensureDecoded();
+
+            BlockState uniform = this.uniform;
+            if (uniform != null) {
+                return uniform;
+            }
+
+            PalettedContainer<BlockState> container = this.container;
+            if (container != null) {
+                return container.get(x, y, z);
+            }
+            return this.offHeap.get(x, y, z);
+        }
+
+        /**
+         * Moves the blocks of this chunk into direct memory, if they are stored in a container. Chunks sharing a
+         * container are given the same off-heap section through the given map.
+         *
+         * @param store the store to allocate packed data from
+         * @param packed the sections which have already been packed, keyed by their source container
+         */
+        void moveOffHeap(OffHeapSectionStore store, Map<PalettedContainer<BlockState>, OffHeapSection> packed) {
+            this.ensureDecoded();
+
+            PalettedContainer<BlockState> container = this.container;
+            if (container == null) {
+                return;
+            }
+
+            OffHeapSection section;
+            if (this.sharedContainer) {
+                section = packed.computeIfAbsent(container, c -> OffHeapSection.pack(c, store));
+            } else {
+                section = OffHeapSection.pack(container, store);
+            }
+
+            this.offHeap = section;
+            this.container = null;
+            this.sharedContainer = false;
+        }
+
+        /**
+         * Moves the blocks of this chunk back into a container if they are held off-heap, so that they can be modified.
+         */
+        private void ensureOnHeap() {
+            OffHeapSection offHeap = this.offHeap;
+            if (offHeap != null) {
+                PalettedContainer<BlockState> container = createContainer();
+                offHeap.copyTo(container);
+                this.setContainer(container);
+            }
+        }
+
+        private PalettedContainer<BlockState> inflate() {
+            PalettedContainer<BlockState> container = createContainer();
+            PalettedContainers.fill(container, this.uniform);
+
+            this.nonAirCount = this.uniform.isAir() ? 0 : 4096;
+            this.container = container;
+            this.uniform = null;
+
+            return container;
+        }
+
+        private PalettedContainer<BlockState> unshare() {
+            PalettedContainer<BlockState> container = createContainer();
+            PalettedContainers.copy(this.container, container);
+
+            this.container = container;
+            this.sharedContainer = false;
+
+            return container;
+        }
+
+        private void setUniform(BlockState state) {
+            this.uniform = state;
+            this.container = null;
+            this.offHeap = null;
+            this.nonAirCount = 0;
+            this.sharedContainer = false;
+        }
+
+        private void setContainer(PalettedContainer<BlockState> container) {
+            int[] nonAirCount = new int[1];
+            BlockState[] uniform = new BlockState[1];
+            container.count((state, count) -> {
+                if (!state.isAir()) {
+                    nonAirCount[0] += count;
+                }
+                if (count == 4096) {
+                    uniform[0] = state;
+                }
+            });
+
+            if (uniform[0] != null) {
+                this.setUniform(uniform[0]);
+            } else {
+                this.container = container;
+                this.uniform = null;
+                this.offHeap = null;
+                this.nonAirCount = nonAirCount[0];
+                this.sharedContainer = false;
+            }
+        }
+
+        /**
+         * Makes this chunk hold the same blocks as the given chunk, sharing its container rather than copying it.
+         *
+         * @param source the chunk to share blocks with
+         */
+        void shareBlocksWith(Chunk source) {
+            this.shareBlocksFrom(source);
+            if (this.container != null) {
+                source.sharedContainer = true;
+            }
+        }
+
+        /**
+         * Makes this chunk hold the same blocks as the given chunk without modifying it, so the source must never be
+         * written to while this chunk shares its container.
+         */
+        private void shareBlocksFrom(Chunk source) {
+            this.ensureDecoded();
+            source.ensureDecoded();
+
+            if (source.uniform != null) {
+                this.setUniform(source.uniform);
+                return;
+            }
+
+            if (source.offHeap != null) {
+                // off-heap sections are never modified, so can be shared without marking either chunk
+                this.offHeap = source.offHeap;
+                this.container = null;
+                this.uniform = null;
+                this.nonAirCount = source.nonAirCount;
+                this.sharedContainer = false;
+                return;
+            }
+
+            this.container = source.container;
+            this.uniform = null;
+            this.offHeap = null;
+            this.nonAirCount = source.nonAirCount;
+            this.sharedContainer = true;
+        }
+
+        /**
+         * Returns a key identifying the blocks in this chunk, or null if this chunk holds a single block state or has
+         * not been decoded yet.
+         */
+        @Nullable
+        PalettedContainers.ContentKey getBlocksKey() {
+            if (!this.isDecoded() || this.container == null) {
+                return null;
+            }
+            return PalettedContainers.contentKey(this.container);
+        }
+
+        /**
+         * Finds the state of every block in the given container, if they are all the same.
+         */
+        @Nullable
+        private static BlockState findUniformState(PalettedContainer<BlockState> container) {
+            BlockState[] uniform = new BlockState[1];
+            container.count((state, count) -> {
+                if (count == 4096) {
+                    uniform[0] = state;
+                }
+            });
+            return uniform[0];
+        }
+
+        /**
+         * Switches this chunk to storing a single block state if every block in it is the same.
+         * Chunks which have not been decoded yet are left untouched.
+         */
+        void compact() {
+            if (!this.isDecoded() || this.container == null) {
+                return;
+            }
+
+            BlockState uniform = findUniformState(this.container);
+            if (uniform != null) {
+                this.setUniform(uniform);
+            }
+        }
+
+        boolean isDecoded() {
+            return this.encoded == null;
+        }
+
+        /**
+         * @return whether this chunk contains only air and no entities or block entities, and so does not need to be
+         * stored
+         */
+        boolean isEmpty() {
+            this.ensureDecoded();
+            return this.uniform == AIR && this.entities.isEmpty() && this.blockEntities == null;
+        }
+
+        /**
+         * Replaces the contents of the given container with the blocks in this chunk.
+         *
+         * @param target The container to copy into.
+         */
+        public void copyTo(PalettedContainer<BlockState> target) {
+            this.ensureDecoded();
+
+            BlockState uniform = this.uniform;
+            if (uniform != null) {
+                PalettedContainers.fill(target, uniform);
+            } else if (this.container != null) {
+                PalettedContainers.copy(this.container, target);
+            } else {
+                this.offHeap.copyTo(target);
+            }
+        }
+
+        /**
+         * Creates a copy of this chunk with the same blocks and block entities but without any entities.
+         * <p>
+         * The copy shares the container of this chunk and copies it before it is first written to, but this chunk is
+         * left untouched, so it must not be modified afterwards.
+         *
+         * @return The copied chunk.
+         */
+        Chunk copyBlocks() {
+            this.ensureDecoded();
+
+            Chunk copy = new Chunk();
+            copy.shareBlocksFrom(this);
+            if (this.blockEntities != null) {
+                copy.blockEntities = new Short2ObjectOpenHashMap<>(this.blockEntities);
+                copy.blockEntityMask = this.blockEntityMask.clone();
+            }
+            return copy;
+        }
+
+        private static int blockIndex(int x, int y, int z) {
+            return y << 8 | z << 4 | x;
+        }
+
+        @Nullable
+        CompoundTag getBlockEntityTag(int x, int y, int z) {
+            this.ensureDecoded();
+
+            long[] mask = this.blockEntityMask;
+            int index = blockIndex(x, y, z);
+            if (mask == null || (mask[index >> 6] & 1L << (index & 63)) == 0) {
+                return null;
+            }
+            return this.blockEntities.get((short) index);
+        }
+
+        void setBlockEntityTag(int x, int y, int z, CompoundTag tag) {
+            this.ensureDecoded();
+            this.putBlockEntityTag(x, y, z, tag);
+        }
+
+        private void putBlockEntityTag(int x, int y, int z, CompoundTag tag) {
+            if (this.blockEntities == null) {
+                this.blockEntities = new Short2ObjectOpenHashMap<>();
+                this.blockEntityMask = new long[4096 / Long.SIZE];
+            }
+
+            int index = blockIndex(x, y, z);
+            this.blockEntities.put((short) index, tag);
+            this.blockEntityMask[index >> 6] |= 1L << (index & 63);
+        }
+
+        void removeBlockEntityTag(int x, int y, int z) {
+            this.ensureDecoded();
+
+            if (this.blockEntities == null) {
+                return;
+            }
+
+            int index = blockIndex(x, y, z);
+            this.blockEntities.remove((short) index);
+            this.blockEntityMask[index >> 6] &= ~(1L << (index & 63));
+
+            if (this.blockEntities.isEmpty()) {
+                this.blockEntities = null;
+                this.blockEntityMask = null;
+            }
+        }
+
+        /**
+         * Calls the given consumer for every block entity in this chunk, without testing any other position.
+         *
+         * @param consumer the consumer to accept the position within this chunk and the stored tag of each block entity
+         */
+        void forEachBlockEntity(BlockEntityConsumer consumer) {
+            this.ensureDecoded();
+
+            Short2ObjectMap<CompoundTag> blockEntities = this.blockEntities;
+            if (blockEntities == null) {
+                return;
+            }
+
+            for (Short2ObjectMap.Entry<CompoundTag> entry : Short2ObjectMaps.fastIterable(blockEntities)) {
+                int index = entry.getShortKey();
+                consumer.accept(index & 15, index >> 8 & 15, index >> 4 & 15, entry.getValue());
+            }
+        }
+
+        /**
+         * Replaces the blocks in this chunk with the contents of the given container.
+         *
+         * @param source The container to copy from.
+         */
+        public void copyFrom(PalettedContainer<BlockState> source) {
+            this.ensureDecoded();
+
+            PalettedContainer<BlockState> container = createContainer();
+            PalettedContainers.copy(source, container);
+            this.setContainer(container);
+        }
+
+        /**
+         * Returns whether this chunk may contain a block matching the given predicate.
+         * <p>
+         * This only tests the palette, so it may return true for blocks that have since been replaced.
+         *
+         * @param predicate The predicate to test.
+         * @return False if no block in this chunk matches the predicate.
+         */
+        public boolean hasAny(Predicate<BlockState> predicate) {
+            this.ensureDecoded();
+
+            BlockState uniform = this.uniform;
+            if (uniform != null) {
+                return predicate.test(uniform);
+            }
+
+            PalettedContainer<BlockState> container = this.container;
+            if (container != null) {
+                return container.hasAny(predicate);
+            }
+            return this.offHeap.hasAny(predicate);
+        }
+
+        /**
+         * Calls the given consumer for every block in this chunk which matches the given predicate.
+         *
+         * @param predicate the predicate to test
+         * @param minX the minimum X-coordinate of this chunk
+         * @param minY the minimum Y-coordinate of this chunk
+         * @param minZ the minimum Z-coordinate of this chunk
+         * @param pos the mutable position to pass to the consumer, which is moved to each matching block
+         * @param consumer the consumer to accept each matching position and block
+         */
+        void forEachMatching(Predicate<BlockState> predicate, int minX, int minY, int minZ, BlockPos.Mutable pos, BiConsumer<BlockPos, BlockState> consumer) {
+            this.ensureDecoded();
+
+            BlockState uniform = this.uniform;
+            if (uniform != null && !predicate.test(uniform)) {
+                return;
+            }
+
+            PalettedContainer<BlockState> container = this.container;
+            OffHeapSection offHeap = this.offHeap;
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        BlockState state;
+                        if (uniform != null) {
+                            state = uniform;
+                        } else {
+                            state = container != null ? container.get(x, y, z) : offHeap.get(x, y, z);
+                        }
+                        if (uniform != null || predicate.test(state)) {
+                            consumer.accept(pos.set(minX + x, minY + y, minZ + z), state);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Estimates the number of heap bytes retained by this chunk.
+         *
+         * @param sharedContainers the shared containers which have already been counted, so that each is only counted once
+         * @param decoded whether a chunk which is still encoded should be counted as if it was decoded
+         * @return the estimated size in bytes
+         */
+        long estimateRetainedBytes(Set<Object> sharedContainers, boolean decoded) {
+            ByteBuffer encoded = this.encoded;
+            if (encoded != null) {
+                return encoded.isDirect() && !decoded ? CHUNK_OVERHEAD_BYTES : CHUNK_OVERHEAD_BYTES + encoded.capacity();
+            }
+
+            long bytes = CHUNK_OVERHEAD_BYTES;
+            if (this.container != null && (!this.sharedContainer || sharedContainers.add(this.container))) {
+                bytes += PalettedContainers.estimateRetainedBytes(this.container);
+            }
+            if (this.offHeap != null && sharedContainers.add(this.offHeap)) {
+                bytes += this.offHeap.estimateRetainedBytes();
+            }
+            bytes += (long) this.entities.size() * TAG_ESTIMATE_BYTES;
+            if (this.blockEntities != null) {
+                bytes += (long) this.blockEntities.size() * TAG_ESTIMATE_BYTES + this.blockEntityMask.length * Long.BYTES;
+            }
+            return bytes;
+        }
+
+        /**
+         * Adds the contents of this chunk to the given statistics. Chunks which have not been decoded yet are only
+         * counted as encoded.
+         */
+        void collectStats(MapTemplateStats.Collector stats) {
+            stats.sectionCount++;
+            if (this.encoded != null) {
+                stats.encodedSectionCount++;
+                return;
+            }
+
+            BlockState uniform = this.uniform;
+            PalettedContainer<BlockState> container = this.container;
+            if (uniform != null) {
+                stats.uniformSectionCount++;
+                if (uniform.isAir()) {
+                    stats.emptySectionCount++;
+                }
+            } else if (container != null) {
+                stats.addPaletteBits(((PalettedContainerAccess<?>) container).getPaletteSize());
+                if (this.sharedContainer) {
+                    stats.sharedSectionCount++;
+                }
+            } else if (this.offHeap != null) {
+                stats.offHeapSectionCount++;
+                stats.addPaletteBits(this.offHeap.getBits());
+            }
+
+            stats.entityCount += this.entities.size();
+            if (this.blockEntities != null) {
+                stats.blockEntityCount += this.blockEntities.size();
+            }
         }
 
         /**
@@ -299,9 +1307,24 @@ public final class MapTemplate {
          * @param pos The entity position relatives to the map.
          */
         public void addEntity(Entity entity, Vec3d pos) {
+            CompoundTag tag = createEntityTag(entity, pos);
+            if (tag != null) {
+                this.addEntityTag(tag);
+            }
+        }
+
+        /**
+         * Serializes an entity to be added to a chunk, with its position made relative to the chunk.
+         *
+         * @param entity The entity to serialize.
+         * @param pos The entity position relatives to the map.
+         * @return The serialized entity, or null if the entity should not be saved.
+         */
+        @Nullable
+        static CompoundTag createEntityTag(Entity entity, Vec3d pos) {
             CompoundTag tag = new CompoundTag();
 
-            if (!entity.saveToTag(tag)) { return; }
+            if (!entity.saveToTag(tag)) { return null; }
 
             // Avoid conflicts.
             tag.remove("UUID");
@@ -328,6 +1351,11 @@ public final class MapTemplate {
                 tag.putInt("TileZ", blockPos.getZ() - minChunkZ);
             }
 
+            return tag;
+        }
+
+        void addEntityTag(CompoundTag tag) {
+            this.ensureDecoded();
             this.entities.add(tag);
         }
 
@@ -337,22 +1365,89 @@ public final class MapTemplate {
          * @return The entities in this chunk.
          */
         public List<CompoundTag> getEntities() {
+            this.ensureDecoded();
             return this.entities;
         }
 
         public void serialize(CompoundTag tag) {
-            this.container.write(tag, "palette", "block_states");
+            this.serializeBlocks(tag);
+            this.serializeEntities(tag);
+        }
+
+        void serializeBlocks(CompoundTag tag) {
+            this.ensureDecoded();
+
+            PalettedContainer<BlockState> container = this.container;
+            if (this.offHeap != null) {
+                container = createContainer();
+                this.offHeap.copyTo(container);
+            }
+
+            BlockState uniform = this.uniform;
+            if (uniform == null) {
+                uniform = findUniformState(container);
+            }
+
+            if (uniform != null) {
+                tag.put("state", NbtHelper.fromBlockState(uniform));
+            } else {
+                container.write(tag, "palette", "block_states");
+            }
+        }
+
+        void serializeEntities(CompoundTag tag) {
+            this.ensureDecoded();
+
             ListTag entitiesTag = new ListTag();
             entitiesTag.addAll(this.entities);
             tag.put("entities", entitiesTag);
+
+            if (this.blockEntities != null) {
+                ListTag blockEntitiesTag = new ListTag();
+                blockEntitiesTag.addAll(this.blockEntities.values());
+                tag.put("block_entities", blockEntitiesTag);
+            }
         }
 
         public static Chunk deserialize(CompoundTag tag) {
             Chunk chunk = new Chunk();
-            chunk.container.read(tag.getList("palette", NbtType.COMPOUND), tag.getLongArray("block_states"));
-            ListTag entitiesTag = tag.getList("entities", NbtType.COMPOUND);
-            entitiesTag.forEach(entityTag -> chunk.entities.add((CompoundTag) entityTag));
+            chunk.read(tag);
             return chunk;
         }
+
+        private void read(CompoundTag tag) {
+            if (tag.contains(BLOCKS_REF_KEY, NbtType.INT_ARRAY)) {
+                // the blocks are shared with another chunk, and are filled in by the template loader
+            } else if (tag.contains("state", NbtType.COMPOUND)) {
+                this.setUniform(NbtHelper.toBlockState(tag.getCompound("state")));
+            } else {
+                ListTag paletteTag = tag.getList("palette", NbtType.COMPOUND);
+                if (paletteTag.size() == 1) {
+                    // the written palette always starts with air, so a single entry means the chunk only holds air.
+                    // chunks filled with any other single state are found when their container is set instead
+                    this.setUniform(NbtHelper.toBlockState(paletteTag.getCompound(0)));
+                } else {
+                    PalettedContainer<BlockState> container = createContainer();
+                    container.read(paletteTag, tag.getLongArray("block_states"));
+                    this.setContainer(container);
+                }
+            }
+
+            ListTag entitiesTag = tag.getList("entities", NbtType.COMPOUND);
+            entitiesTag.forEach(entityTag -> this.entities.add((CompoundTag) entityTag));
+
+            ListTag blockEntitiesTag = tag.getList("block_entities", NbtType.COMPOUND);
+            for (int i = 0; i < blockEntitiesTag.size(); i++) {
+                CompoundTag blockEntityTag = blockEntitiesTag.getCompound(i);
+                int x = blockEntityTag.getInt("x") & 15;
+                int y = blockEntityTag.getInt("y") & 15;
+                int z = blockEntityTag.getInt("z") & 15;
+                this.putBlockEntityTag(x, y, z, blockEntityTag);
+            }
+        }
+
+        interface BlockEntityConsumer {
+            void accept(int x, int y, int z, CompoundTag tag);
+        }
     }
 }
@@ -0,0 +1,253 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.util.Identifier;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A shared cache of loaded map templates, keyed by their identifier.
+ * <p>
+ * Every game which opens the same map through {@link MapTemplateCache#acquire(Identifier)} receives the same template
+ * instance, and only the first acquisition pays the cost of loading it. Each acquisition must be released by closing
+ * the returned {@link Handle}, which is most easily done by adding it as a resource to the game world:
+ *
+ * <pre>{@code
+ * MapTemplateCache.INSTANCE.acquire(identifier).thenApply(handle -> {
+ *     gameWorld.addResource(handle);
+ *     return handle.get();
+ * });
+ * }</pre>
+ * <p>
+ * Templates which are no longer referenced stay cached until the estimated size of all cached templates exceeds the
+ * memory budget, at which point the least recently released templates are evicted. The size of a template is estimated
+ * again each time it is released, so that chunks decoded while it was in use are counted. The whole cache is invalidated when
+ * server data is reloaded.
+ * <p>
+ * Templates handed out by this cache are shared between games, and are {@link MapTemplate#freeze() frozen} so that
+ * they cannot be modified. Templates estimated to retain more than the off-heap threshold once fully decoded have their
+ * blocks {@link MapTemplate#moveSectionsOffHeap() moved off-heap} before they are handed out, which is disabled by
+ * default. Moving a template off-heap decodes all of its chunks up front, including those of indexed templates which
+ * would otherwise only be decoded when first read.
+ */
+public final class MapTemplateCache {
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+    public static final long OFF_HEAP_DISABLED = Long.MAX_VALUE;
+
+    public static final MapTemplateCache INSTANCE = new MapTemplateCache(MapTemplateSerializer.INSTANCE);
+
+    private final MapTemplateSerializer serializer;
+
+    private final Map<Identifier, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<Identifier, Entry> idle = new LinkedHashMap<>();
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private long retainedBytes;
+
+    private volatile long offHeapThreshold = OFF_HEAP_DISABLED;
+
+    private MapTemplateCache(MapTemplateSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * Acquires a reference to the template with the given identifier, loading it if it is not already cached.
+     *
+     * @param identifier the template identifier
+     * @return a future to a handle of the shared template, which must be closed once the template is no longer used
+     */
+    public CompletableFuture<Handle> acquire(Identifier identifier) {
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(identifier);
+            if (entry == null) {
+                entry = this.load(identifier);
+            }
+
+            entry.references++;
+            this.idle.remove(identifier);
+        }
+
+        Entry acquired = entry;
+        return entry.future.thenApply(template -> new Handle(acquired, template));
+    }
+
+    private Entry load(Identifier identifier) {
+        Entry entry = new Entry(identifier, this.serializer.load(identifier).thenApply(this::prepare));
+        this.entries.put(identifier, entry);
+
+        entry.future.whenComplete((template, throwable) -> {
+            synchronized (this) {
+                if (throwable != null) {
+                    this.entries.remove(identifier, entry);
+                    this.idle.remove(identifier, entry);
+                } else {
+                    this.onLoaded(entry, template);
+                }
+            }
+        });
+
+        return entry;
+    }
+
+    private MapTemplate prepare(MapTemplate template) {
+        template.freeze();
+        // lazily decoded chunks are all decoded when moved off-heap, so the threshold applies to the decoded size
+        long offHeapThreshold = this.offHeapThreshold;
+        if (offHeapThreshold != OFF_HEAP_DISABLED && template.estimateDecodedBytes() > offHeapThreshold) {
+            template.moveSectionsOffHeap();
+        }
+        return template;
+    }
+
+    private void onLoaded(Entry entry, MapTemplate template) {
+        if (entry.invalidated) {
+            return;
+        }
+
+        entry.template = template;
+        entry.retainedBytes = template.estimateRetainedBytes();
+        this.retainedBytes += entry.retainedBytes;
+        this.evict();
+    }
+
+    private synchronized void release(Entry entry) {
+        if (--entry.references > 0) {
+            return;
+        }
+
+        if (entry.invalidated) {
+            this.retainedBytes -= entry.retainedBytes;
+            return;
+        }
+
+        this.updateRetainedBytes(entry);
+
+        this.idle.put(entry.identifier, entry);
+        this.evict();
+    }
+
+    // lazily decoded chunks grow the template as they are read, so the estimate from loading is refreshed once unused
+    private void updateRetainedBytes(Entry entry) {
+        MapTemplate template = entry.template;
+        if (template == null) {
+            return;
+        }
+
+        long retainedBytes = template.estimateRetainedBytes();
+        this.retainedBytes += retainedBytes - entry.retainedBytes;
+        entry.retainedBytes = retainedBytes;
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = this.idle.values().iterator();
+        while (this.retainedBytes > this.memoryBudget && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+
+            this.entries.remove(entry.identifier);
+            this.retainedBytes -= entry.retainedBytes;
+        }
+    }
+
+    /**
+     * Drops every cached template. Templates which are still referenced remain valid for their current holders, but
+     * the next acquisition will load the template again.
+     */
+    public synchronized void invalidate() {
+        for (Entry entry : this.entries.values()) {
+            entry.invalidated = true;
+            if (entry.references <= 0) {
+                this.retainedBytes -= entry.retainedBytes;
+            }
+        }
+
+        this.entries.clear();
+        this.idle.clear();
+    }
+
+    /**
+     * Sets the estimated number of bytes that cached templates may retain before unreferenced templates are evicted.
+     *
+     * @param memoryBudget the memory budget in bytes
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        this.evict();
+    }
+
+    public synchronized long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Sets the estimated number of heap bytes, once fully decoded, above which templates loaded afterwards have their
+     * blocks moved into direct memory, or {@link MapTemplateCache#OFF_HEAP_DISABLED} to keep every template on the heap.
+     * Templates moved off-heap only count their remaining heap usage against the memory budget.
+     *
+     * @param offHeapThreshold the threshold in bytes
+     */
+    public void setOffHeapThreshold(long offHeapThreshold) {
+        this.offHeapThreshold = offHeapThreshold;
+    }
+
+    public long getOffHeapThreshold() {
+        return this.offHeapThreshold;
+    }
+
+    /**
+     * @return the estimated number of bytes retained by all cached templates
+     */
+    public synchronized long getRetainedBytes() {
+        return this.retainedBytes;
+    }
+
+    /**
+     * A reference to a shared template acquired from the cache. The template may be evicted once every handle to it
+     * has been closed.
+     */
+    public final class Handle implements AutoCloseable {
+        private final Entry entry;
+        private final MapTemplate template;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Handle(Entry entry, MapTemplate template) {
+            this.entry = entry;
+            this.template = template;
+        }
+
+        public Identifier getIdentifier() {
+            return this.entry.identifier;
+        }
+
+        public MapTemplate get() {
+            return this.template;
+        }
+
+        @Override
+        public void close() {
+            if (this.closed.compareAndSet(false, true)) {
+                MapTemplateCache.this.release(this.entry);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final Identifier identifier;
+        final CompletableFuture<MapTemplate> future;
+
+        MapTemplate template;
+        int references;
+        long retainedBytes;
+        boolean invalidated;
+
+        Entry(Identifier identifier, CompletableFuture<MapTemplate> future) {
+            this.identifier = identifier;
+            this.future = future;
+        }
+    }
+}
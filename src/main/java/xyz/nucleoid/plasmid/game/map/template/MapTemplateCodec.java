@@ -0,0 +1,137 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression codecs that a {@link MapTemplateFormat#NBT} map template file can be written with.
+ * <p>
+ * Gzip files are written as plain gzip streams, so that they stay readable by anything which expects gzip-compressed
+ * NBT. Every other codec writes a short header naming the codec before the compressed data:
+ *
+ * <pre>
+ * int  magic
+ * byte codec id
+ * compressed data
+ * </pre>
+ * <p>
+ * When reading, the codec is detected from the start of the file.
+ */
+public enum MapTemplateCodec {
+    /**
+     * Uncompressed NBT. Quickest to read and write, but much larger on disk.
+     */
+    NONE(0) {
+        @Override
+        OutputStream compress(OutputStream output) {
+            return output;
+        }
+
+        @Override
+        InputStream decompress(InputStream input) {
+            return input;
+        }
+    },
+    /**
+     * Gzip-compressed NBT, which is the smallest on disk but slowest to decompress.
+     */
+    GZIP(1) {
+        @Override
+        OutputStream compress(OutputStream output) throws IOException {
+            return new GZIPOutputStream(output);
+        }
+
+        @Override
+        InputStream decompress(InputStream input) throws IOException {
+            return new GZIPInputStream(input);
+        }
+    },
+    /**
+     * LZ4-compressed NBT, which is somewhat larger than gzip on disk but many times faster to decompress.
+     */
+    LZ4(2) {
+        @Override
+        OutputStream compress(OutputStream output) throws IOException {
+            return new LZ4FrameOutputStream(output);
+        }
+
+        @Override
+        InputStream decompress(InputStream input) throws IOException {
+            return new LZ4FrameInputStream(input);
+        }
+    };
+
+    private static final int MAGIC = 0x504D5443;
+
+    // the first two bytes of every gzip stream
+    private static final int GZIP_MAGIC = 0x1F8B;
+
+    private final int id;
+
+    MapTemplateCodec(int id) {
+        this.id = id;
+    }
+
+    abstract OutputStream compress(OutputStream output) throws IOException;
+
+    abstract InputStream decompress(InputStream input) throws IOException;
+
+    /**
+     * Writes the codec header to the given stream, and wraps it to compress everything written after.
+     *
+     * @param output the stream to write the file to
+     * @return a stream to write the uncompressed data to, which must be closed to finish the file
+     */
+    OutputStream openOutput(OutputStream output) throws IOException {
+        if (this != GZIP) {
+            DataOutputStream header = new DataOutputStream(output);
+            header.writeInt(MAGIC);
+            header.writeByte(this.id);
+            header.flush();
+        }
+
+        return this.compress(output);
+    }
+
+    /**
+     * Detects the codec from the start of the given stream, and wraps it to decompress the rest of the file.
+     *
+     * @param input the stream to read the file from
+     * @return a stream of the decompressed data
+     * @throws IOException if the codec is not recognised
+     */
+    static InputStream openInput(InputStream input) throws IOException {
+        input = new BufferedInputStream(input);
+
+        input.mark(Integer.BYTES + 1);
+        DataInputStream header = new DataInputStream(input);
+
+        int magic = header.readInt();
+        if (magic >>> 16 == GZIP_MAGIC) {
+            input.reset();
+            return GZIP.decompress(input);
+        }
+
+        if (magic != MAGIC) {
+            throw new IOException("Unknown map template codec header: " + Integer.toHexString(magic));
+        }
+
+        int id = header.readUnsignedByte();
+        for (MapTemplateCodec codec : values()) {
+            if (codec.id == id) {
+                return codec.decompress(input);
+            }
+        }
+
+        throw new IOException("Unknown map template codec id: " + id);
+    }
+}
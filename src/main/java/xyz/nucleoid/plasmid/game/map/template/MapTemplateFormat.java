@@ -0,0 +1,30 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+/**
+ * The on-disk formats that a {@link MapTemplate} can be saved in.
+ */
+public enum MapTemplateFormat {
+    /**
+     * A single compressed NBT tree holding the whole template.
+     *
+     * @see MapTemplateCodec
+     */
+    NBT("nbt"),
+    /**
+     * An uncompressed file with a header-indexed table of chunk offsets, which can be memory-mapped and decodes each
+     * chunk only when it is first accessed.
+     *
+     * @see IndexedMapTemplateFormat
+     */
+    INDEXED("mapt");
+
+    private final String extension;
+
+    MapTemplateFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return this.extension;
+    }
+}
@@ -21,11 +21,15 @@ import net.minecraft.util.registry.RegistryKey;
 import xyz.nucleoid.plasmid.Plasmid;
 import xyz.nucleoid.plasmid.util.BlockBounds;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 
@@ -34,6 +38,8 @@ public final class MapTemplateSerializer {
 
     private static final Path EXPORT_ROOT = Paths.get(Plasmid.ID, "export");
 
+    private static final String CHUNK_SNAPSHOTS_EXTENSION = "chunks";
+
     private ResourceManager resourceManager;
 
     private MapTemplateSerializer() {
@@ -51,17 +57,38 @@ public final class MapTemplateSerializer {
             @Override
             public void apply(ResourceManager manager) {
                 MapTemplateSerializer.this.resourceManager = manager;
+                MapTemplateCache.INSTANCE.invalidate();
             }
         });
     }
 
+    /**
+     * Loads the map template with the given identifier from the server data.
+     * <p>
+     * If the template has been compiled to the {@link MapTemplateFormat#INDEXED} format, that is preferred over NBT,
+     * and a warning is logged if both are present.
+     *
+     * @param identifier the template identifier
+     * @return a future to the loaded template
+     */
     public CompletableFuture<MapTemplate> load(Identifier identifier) {
         return CompletableFuture.supplyAsync(() -> {
-            Identifier path = getResourcePathFor(identifier);
+            try {
+                long start = System.nanoTime();
+
+                MapTemplate template;
+                Identifier indexedPath = getResourcePathFor(identifier, MapTemplateFormat.INDEXED);
+                if (this.resourceManager.containsResource(indexedPath)) {
+                    Identifier nbtPath = getResourcePathFor(identifier, MapTemplateFormat.NBT);
+                    if (this.resourceManager.containsResource(nbtPath)) {
+                        Plasmid.LOGGER.warn("Map template '{}' exists as both '{}' and '{}': loading the indexed template", identifier, indexedPath, nbtPath);
+                    }
+                    template = this.loadIndexed(indexedPath);
+                } else {
+                    template = this.loadNbt(getResourcePathFor(identifier, MapTemplateFormat.NBT));
+                }
 
-            try (Resource resource = this.resourceManager.getResource(path)) {
-                MapTemplate template = MapTemplate.createEmpty();
-                this.load(template, NbtIo.readCompressed(resource.getInputStream()));
+                template.setLoadNanos(System.nanoTime() - start);
                 return template;
             } catch (IOException e) {
                 throw new CompletionException(e);
@@ -70,53 +97,146 @@ public final class MapTemplateSerializer {
     }
 
     public CompletableFuture<Void> save(MapTemplate template, Identifier identifier) {
+        return this.save(template, identifier, MapTemplateFormat.NBT);
+    }
+
+    public CompletableFuture<Void> save(MapTemplate template, Identifier identifier, MapTemplateFormat format) {
+        return this.save(template, identifier, format, MapTemplateCodec.GZIP);
+    }
+
+    /**
+     * Saves the given template to the export directory. Any export of the same template in another format is deleted,
+     * so that a stale file is never loaded in its place.
+     *
+     * @param template the template to save
+     * @param identifier the template identifier
+     * @param format the format to save in
+     * @param codec the compression codec to use, if the format is {@link MapTemplateFormat#NBT}
+     * @return a future which completes once the template is written
+     */
+    public CompletableFuture<Void> save(MapTemplate template, Identifier identifier, MapTemplateFormat format, MapTemplateCodec codec) {
+        return CompletableFuture.supplyAsync(() -> {
+            Path path = getExportPathFor(identifier, format);
+            try {
+                Files.createDirectories(path.getParent());
+                try (OutputStream output = Files.newOutputStream(path)) {
+                    switch (format) {
+                        case NBT:
+                            try (OutputStream compressed = codec.openOutput(new BufferedOutputStream(output))) {
+                                NbtIo.write(this.save(template), new DataOutputStream(compressed));
+                            }
+                            break;
+                        case INDEXED:
+                            IndexedMapTemplateFormat.write(template, output);
+                            break;
+                    }
+                }
+
+                for (MapTemplateFormat otherFormat : MapTemplateFormat.values()) {
+                    if (otherFormat != format) {
+                        Files.deleteIfExists(getExportPathFor(identifier, otherFormat));
+                    }
+                }
+
+                return null;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, Util.getIoWorkerExecutor());
+    }
+
+    /**
+     * Compiles the chunks covered by the given template and saves them to the export directory, next to the template
+     * itself.
+     *
+     * @param template the template to compile chunks from
+     * @param identifier the template identifier
+     * @return a future which completes once the snapshots are written
+     * @see TemplateChunkSnapshots
+     */
+    public CompletableFuture<Void> saveChunkSnapshots(MapTemplate template, Identifier identifier) {
         return CompletableFuture.supplyAsync(() -> {
-            Path path = getExportPathFor(identifier);
+            CompoundTag root = TemplateChunkSnapshots.compile(template).serialize();
+
+            Path path = getExportPath(identifier, CHUNK_SNAPSHOTS_EXTENSION);
             try {
                 Files.createDirectories(path.getParent());
                 try (OutputStream output = Files.newOutputStream(path)) {
-                    CompoundTag root = this.save(template);
                     NbtIo.writeCompressed(root, output);
-                    return null;
                 }
+                return null;
             } catch (IOException e) {
                 throw new CompletionException(e);
             }
         }, Util.getIoWorkerExecutor());
     }
 
-    private void load(MapTemplate template, CompoundTag root) {
-        ListTag chunkList = root.getList("chunks", NbtType.COMPOUND);
-        for (int i = 0; i < chunkList.size(); i++) {
-            CompoundTag chunkRoot = chunkList.getCompound(i);
+    /**
+     * Loads the chunk snapshots compiled for the map template with the given identifier from the server data.
+     *
+     * @param identifier the template identifier
+     * @return a future to the loaded snapshots, or to null if no snapshots have been compiled for the template
+     * @see TemplateChunkSnapshots
+     */
+    public CompletableFuture<TemplateChunkSnapshots> loadChunkSnapshots(Identifier identifier) {
+        return CompletableFuture.supplyAsync(() -> {
+            Identifier path = getResourcePath(identifier, CHUNK_SNAPSHOTS_EXTENSION);
+            if (!this.resourceManager.containsResource(path)) {
+                return null;
+            }
+
+            try (Resource resource = this.resourceManager.getResource(path)) {
+                return TemplateChunkSnapshots.deserialize(NbtIo.readCompressed(resource.getInputStream()));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, Util.getIoWorkerExecutor());
+    }
 
-            int[] posArray = chunkRoot.getIntArray("pos");
-            if (posArray.length != 3) {
-                Plasmid.LOGGER.warn("Invalid chunk pos key: {}", posArray);
-                continue;
+    /**
+     * Converts an existing NBT map template from the server data to the {@link MapTemplateFormat#INDEXED} format,
+     * and exports it next to the other compiled templates.
+     *
+     * @param identifier the template identifier
+     * @return a future which completes once the converted template is written
+     */
+    public CompletableFuture<Void> convertToIndexed(Identifier identifier) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.loadNbt(getResourcePathFor(identifier, MapTemplateFormat.NBT));
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
+        }, Util.getIoWorkerExecutor()).thenCompose(template -> this.save(template, identifier, MapTemplateFormat.INDEXED));
+    }
 
-            long pos = ChunkSectionPos.asLong(posArray[0], posArray[1], posArray[2]);
-            MapTemplate.Chunk chunk = MapTemplate.Chunk.deserialize(chunkRoot);
+    private MapTemplate loadNbt(Identifier path) throws IOException {
+        try (Resource resource = this.resourceManager.getResource(path)) {
+            MapTemplate template = MapTemplate.createEmpty();
+            StreamingMapTemplateReader.read(template, resource.getInputStream());
+            return template;
+        }
+    }
 
-            template.chunks.put(pos, chunk);
+    private MapTemplate loadIndexed(Identifier path) throws IOException {
+        try (Resource resource = this.resourceManager.getResource(path)) {
+            MapTemplate template = MapTemplate.createEmpty();
+            IndexedMapTemplateFormat.read(template, IndexedMapTemplateFormat.readBuffer(resource.getInputStream()));
+            return template;
         }
+    }
 
+    static void loadMetadata(MapTemplate template, CompoundTag root) {
         ListTag regionList = root.getList("regions", NbtType.COMPOUND);
         for (int i = 0; i < regionList.size(); i++) {
             CompoundTag regionRoot = regionList.getCompound(i);
-            template.regions.add(TemplateRegion.deserialize(regionRoot));
+            template.addRegion(TemplateRegion.deserialize(regionRoot));
         }
 
+        // block entities are stored with their chunks, but older templates kept them in one list
         ListTag blockEntityList = root.getList("block_entities", NbtType.COMPOUND);
         for (int i = 0; i < blockEntityList.size(); i++) {
-            CompoundTag blockEntity = blockEntityList.getCompound(i);
-            BlockPos pos = new BlockPos(
-                    blockEntity.getInt("x"),
-                    blockEntity.getInt("y"),
-                    blockEntity.getInt("z")
-            );
-            template.blockEntities.put(pos.asLong(), blockEntity);
+            loadBlockEntity(template, blockEntityList.getCompound(i));
         }
 
         template.bounds = BlockBounds.deserialize(root.getCompound("bounds"));
@@ -126,53 +246,90 @@ public final class MapTemplateSerializer {
         if (!Strings.isNullOrEmpty(biomeId)) {
             template.biome = RegistryKey.of(Registry.BIOME_KEY, new Identifier(biomeId));
         }
+
+        if (root.contains("lighting", NbtType.LIST)) {
+            template.lighting = TemplateLighting.deserialize(root.getList("lighting", NbtType.COMPOUND));
+        }
     }
 
-    private CompoundTag save(MapTemplate template) {
+    static void loadBlockEntity(MapTemplate template, CompoundTag blockEntity) {
+        BlockPos pos = new BlockPos(
+                blockEntity.getInt("x"),
+                blockEntity.getInt("y"),
+                blockEntity.getInt("z")
+        );
+        template.setBlockEntityTag(pos, blockEntity);
+    }
+
+    CompoundTag save(MapTemplate template) {
         CompoundTag root = new CompoundTag();
 
         ListTag chunkList = new ListTag();
 
+        // chunks with the same blocks as an earlier chunk only reference that chunk's position
+        Map<PalettedContainers.ContentKey, int[]> writtenBlocks = new HashMap<>();
+
         for (Long2ObjectMap.Entry<MapTemplate.Chunk> entry : Long2ObjectMaps.fastIterable(template.chunks)) {
             ChunkSectionPos pos = ChunkSectionPos.from(entry.getLongKey());
             MapTemplate.Chunk chunk = entry.getValue();
 
             CompoundTag chunkRoot = new CompoundTag();
 
-            chunkRoot.putIntArray("pos", new int[] { pos.getX(), pos.getY(), pos.getZ() });
-            chunk.serialize(chunkRoot);
+            int[] posArray = new int[] { pos.getX(), pos.getY(), pos.getZ() };
+            chunkRoot.putIntArray("pos", posArray);
+
+            PalettedContainers.ContentKey blocksKey = chunk.getBlocksKey();
+            int[] blocksRef = blocksKey != null ? writtenBlocks.putIfAbsent(blocksKey, posArray) : null;
+            if (blocksRef != null) {
+                chunkRoot.putIntArray(MapTemplate.Chunk.BLOCKS_REF_KEY, blocksRef);
+            } else {
+                chunk.serializeBlocks(chunkRoot);
+            }
+            chunk.serializeEntities(chunkRoot);
 
             chunkList.add(chunkRoot);
         }
 
         root.put("chunks", chunkList);
 
+        return saveMetadata(template, root);
+    }
+
+    static CompoundTag saveMetadata(MapTemplate template, CompoundTag root) {
         ListTag regionList = new ListTag();
         for (TemplateRegion region : template.regions) {
             regionList.add(region.serialize(new CompoundTag()));
         }
         root.put("regions", regionList);
 
-        ListTag blockEntityList = new ListTag();
-        blockEntityList.addAll(template.blockEntities.values());
-        root.put("block_entities", blockEntityList);
-
-        root.put("bounds", template.bounds.serialize(new CompoundTag()));
+        root.put("bounds", template.getBounds().serialize(new CompoundTag()));
         root.put("data", template.getData());
 
         if (template.biome != null) {
             root.putString("biome", template.biome.getValue().toString());
         }
 
+        if (template.lighting != null) {
+            root.put("lighting", template.lighting.serialize());
+        }
+
         return root;
     }
 
-    private static Identifier getResourcePathFor(Identifier identifier) {
-        return new Identifier(identifier.getNamespace(), "map_templates/" + identifier.getPath() + ".nbt");
+    private static Identifier getResourcePathFor(Identifier identifier, MapTemplateFormat format) {
+        return getResourcePath(identifier, format.getExtension());
+    }
+
+    private static Identifier getResourcePath(Identifier identifier, String extension) {
+        return new Identifier(identifier.getNamespace(), "map_templates/" + identifier.getPath() + "." + extension);
+    }
+
+    private static Path getExportPathFor(Identifier identifier, MapTemplateFormat format) {
+        return getExportPath(identifier, format.getExtension());
     }
 
-    private static Path getExportPathFor(Identifier identifier) {
-        identifier = getResourcePathFor(identifier);
+    private static Path getExportPath(Identifier identifier, String extension) {
+        identifier = getResourcePath(identifier, extension);
         return EXPORT_ROOT.resolve(identifier.getNamespace()).resolve(identifier.getPath());
     }
 }
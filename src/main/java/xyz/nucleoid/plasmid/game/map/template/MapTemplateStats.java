@@ -0,0 +1,247 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.IntArrayTag;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the contents and memory usage of a {@link MapTemplate}, as returned by
+ * {@link MapTemplate#getStats()}.
+ * <p>
+ * Taking a snapshot does not decode any chunks: chunks which are still encoded are only counted by
+ * {@link MapTemplateStats#getEncodedSectionCount()}, and are left out of the palette, block entity and entity counts.
+ */
+public final class MapTemplateStats {
+    // containers index their palette with an int, so can never use this many bits per block
+    static final int MAX_PALETTE_BITS = 32;
+
+    private final int sectionCount;
+    private final int encodedSectionCount;
+    private final int uniformSectionCount;
+    private final int emptySectionCount;
+    private final int sharedSectionCount;
+    private final int offHeapSectionCount;
+    private final int[] paletteBitsHistogram;
+    private final int blockEntityCount;
+    private final int entityCount;
+    private final int regionCount;
+    private final long estimatedRetainedBytes;
+    private final long offHeapBytes;
+    private final long loadNanos;
+    private final long decodeNanos;
+
+    private MapTemplateStats(Collector collector, int regionCount, long estimatedRetainedBytes, long offHeapBytes, long loadNanos, long decodeNanos) {
+        this.sectionCount = collector.sectionCount;
+        this.encodedSectionCount = collector.encodedSectionCount;
+        this.uniformSectionCount = collector.uniformSectionCount;
+        this.emptySectionCount = collector.emptySectionCount;
+        this.sharedSectionCount = collector.sharedSectionCount;
+        this.offHeapSectionCount = collector.offHeapSectionCount;
+        this.paletteBitsHistogram = collector.paletteBitsHistogram;
+        this.blockEntityCount = collector.blockEntityCount;
+        this.entityCount = collector.entityCount;
+        this.regionCount = regionCount;
+        this.estimatedRetainedBytes = estimatedRetainedBytes;
+        this.offHeapBytes = offHeapBytes;
+        this.loadNanos = loadNanos;
+        this.decodeNanos = decodeNanos;
+    }
+
+    static MapTemplateStats of(MapTemplate template) {
+        Collector collector = new Collector();
+        for (MapTemplate.Chunk chunk : template.chunks.values()) {
+            chunk.collectStats(collector);
+        }
+
+        return new MapTemplateStats(
+                collector,
+                template.regions.size(),
+                template.estimateRetainedBytes(),
+                template.getOffHeapBytes(),
+                template.getLoadNanos(),
+                template.getDecodeNanos()
+        );
+    }
+
+    /**
+     * @return the number of 16x16x16 sections stored in the template
+     */
+    public int getSectionCount() {
+        return this.sectionCount;
+    }
+
+    /**
+     * @return the number of sections which have not yet been decoded from their stored form
+     */
+    public int getEncodedSectionCount() {
+        return this.encodedSectionCount;
+    }
+
+    /**
+     * @return the number of decoded sections which only store a single block state
+     */
+    public int getUniformSectionCount() {
+        return this.uniformSectionCount;
+    }
+
+    /**
+     * @return the number of decoded sections which only contain air, and are kept for their entities or block entities
+     */
+    public int getEmptySectionCount() {
+        return this.emptySectionCount;
+    }
+
+    /**
+     * @return the number of decoded sections whose blocks are shared with another section
+     */
+    public int getSharedSectionCount() {
+        return this.sharedSectionCount;
+    }
+
+    /**
+     * @return the number of decoded sections whose blocks are packed into direct memory
+     */
+    public int getOffHeapSectionCount() {
+        return this.offHeapSectionCount;
+    }
+
+    /**
+     * @return the number of decoded sections which store their blocks in a paletted container on the heap
+     */
+    public int getContainerSectionCount() {
+        return this.sectionCount - this.encodedSectionCount - this.uniformSectionCount - this.offHeapSectionCount;
+    }
+
+    /**
+     * @param bits the number of bits per block
+     * @return the number of paletted sections, on or off the heap, which use the given number of bits to store each block
+     */
+    public int getPaletteBitsCount(int bits) {
+        if (bits < 0 || bits >= this.paletteBitsHistogram.length) {
+            return 0;
+        }
+        return this.paletteBitsHistogram[bits];
+    }
+
+    /**
+     * @return the average number of bits used to store each block, over every paletted container
+     */
+    public double getAveragePaletteBits() {
+        long total = 0;
+        long count = 0;
+        for (int bits = 0; bits < this.paletteBitsHistogram.length; bits++) {
+            total += (long) bits * this.paletteBitsHistogram[bits];
+            count += this.paletteBitsHistogram[bits];
+        }
+        return count > 0 ? (double) total / count : 0.0;
+    }
+
+    /**
+     * @return the largest number of bits used to store each block by any paletted container
+     */
+    public int getMaxPaletteBits() {
+        for (int bits = this.paletteBitsHistogram.length - 1; bits >= 0; bits--) {
+            if (this.paletteBitsHistogram[bits] > 0) {
+                return bits;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the fraction of decoded sections which only store a single block state
+     */
+    public double getUniformRatio() {
+        return this.ratioOfDecoded(this.uniformSectionCount);
+    }
+
+    /**
+     * @return the fraction of decoded sections which only contain air
+     */
+    public double getEmptyRatio() {
+        return this.ratioOfDecoded(this.emptySectionCount);
+    }
+
+    private double ratioOfDecoded(int count) {
+        int decoded = this.sectionCount - this.encodedSectionCount;
+        return decoded > 0 ? (double) count / decoded : 0.0;
+    }
+
+    public int getBlockEntityCount() {
+        return this.blockEntityCount;
+    }
+
+    public int getEntityCount() {
+        return this.entityCount;
+    }
+
+    public int getRegionCount() {
+        return this.regionCount;
+    }
+
+    /**
+     * @return the estimated number of heap bytes retained by the template
+     */
+    public long getEstimatedRetainedBytes() {
+        return this.estimatedRetainedBytes;
+    }
+
+    /**
+     * @return the number of bytes of direct memory reserved for sections packed off-heap
+     */
+    public long getOffHeapBytes() {
+        return this.offHeapBytes;
+    }
+
+    /**
+     * @return the time taken to load the template in nanoseconds, or -1 if it was not loaded from a file
+     */
+    public long getLoadNanos() {
+        return this.loadNanos;
+    }
+
+    /**
+     * @return the total time spent decoding sections of the template in nanoseconds, summed over every thread
+     */
+    public long getDecodeNanos() {
+        return this.decodeNanos;
+    }
+
+    public CompoundTag toTag() {
+        CompoundTag root = new CompoundTag();
+        root.putInt("sections", this.sectionCount);
+        root.putInt("encoded_sections", this.encodedSectionCount);
+        root.putInt("uniform_sections", this.uniformSectionCount);
+        root.putInt("empty_sections", this.emptySectionCount);
+        root.putInt("shared_sections", this.sharedSectionCount);
+        root.putInt("off_heap_sections", this.offHeapSectionCount);
+        root.put("palette_bits", new IntArrayTag(Arrays.copyOf(this.paletteBitsHistogram, this.getMaxPaletteBits() + 1)));
+        root.putInt("block_entities", this.blockEntityCount);
+        root.putInt("entities", this.entityCount);
+        root.putInt("regions", this.regionCount);
+        root.putLong("retained_bytes", this.estimatedRetainedBytes);
+        root.putLong("off_heap_bytes", this.offHeapBytes);
+        root.putLong("load_nanos", this.loadNanos);
+        root.putLong("decode_nanos", this.decodeNanos);
+        return root;
+    }
+
+    static final class Collector {
+        int sectionCount;
+        int encodedSectionCount;
+        int uniformSectionCount;
+        int emptySectionCount;
+        int sharedSectionCount;
+        int offHeapSectionCount;
+        final int[] paletteBitsHistogram = new int[MAX_PALETTE_BITS];
+        int blockEntityCount;
+        int entityCount;
+
+        void addPaletteBits(int bits) {
+            if (bits >= 0 && bits < MAX_PALETTE_BITS) {
+                this.paletteBitsHistogram[bits]++;
+            }
+        }
+    }
+}
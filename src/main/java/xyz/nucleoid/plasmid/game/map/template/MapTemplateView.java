@@ -0,0 +1,169 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.block.BlockMirror;
+import net.minecraft.block.BlockRotation;
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.registry.RegistryKey;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.biome.Biome;
+import org.jetbrains.annotations.Nullable;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A read-only view of the blocks, entities and regions of a map template.
+ * <p>
+ * A {@link MapTemplate} is itself a view, and other views can be layered over it without copying its contents, such
+ * as with {@link MapTemplateView#transformed(BlockRotation, BlockMirror, BlockPos)}. Views can be generated into a
+ * world directly through a {@link TemplateChunkGenerator}.
+ */
+public interface MapTemplateView {
+    BlockState getBlockState(BlockPos pos);
+
+    /**
+     * Returns the tag of the block entity at the given position. The returned tag may be shared with the template,
+     * so it must be copied before being modified.
+     *
+     * @param pos the position relative to this template
+     * @return the block entity tag, or null if there is no block entity at the given position
+     */
+    @Nullable
+    CompoundTag getBlockEntityTag(BlockPos pos);
+
+    /**
+     * Returns a stream of serialized entities from a chunk, positioned relative to the minimum corner of the chunk.
+     * The returned tags may be shared with the template, so they must be copied before being modified.
+     *
+     * @param chunkX The chunk X-coordinate.
+     * @param chunkY The chunk Y-coordinate.
+     * @param chunkZ The chunk Z-coordinate.
+     * @return The stream of entities.
+     */
+    Stream<CompoundTag> getEntitiesInChunk(int chunkX, int chunkY, int chunkZ);
+
+    int getTopY(int x, int z, Heightmap.Type heightmap);
+
+    /**
+     * Returns whether the given column has no block matching the given heightmap. The top of an empty column is
+     * reported as the bottom of the template by {@link MapTemplateView#getTopY(int, int, Heightmap.Type)}, so this is
+     * needed to tell it apart from a column with a single block at the bottom.
+     *
+     * @param x the column X-coordinate relative to this template
+     * @param z the column Z-coordinate relative to this template
+     * @param heightmap the heightmap type
+     * @return whether the column is empty
+     */
+    default boolean isColumnEmpty(int x, int z, Heightmap.Type heightmap) {
+        BlockState top = this.getBlockState(this.getTopPos(x, z, heightmap));
+        return !heightmap.getBlockPredicate().test(top);
+    }
+
+    BlockBounds getBounds();
+
+    RegistryKey<Biome> getBiome();
+
+    CompoundTag getData();
+
+    /**
+     * Returns every region with the given marker, in the order they were added.
+     *
+     * @param marker the region marker
+     * @return an unmodifiable list of the regions with the given marker
+     */
+    List<TemplateRegion> getTemplateRegionList(String marker);
+
+    /**
+     * Calls the given consumer for every region which contains the given position, without allocating a list.
+     *
+     * @param pos the position relative to this template
+     * @param consumer the consumer to accept each region
+     */
+    void forEachRegionAt(BlockPos pos, Consumer<TemplateRegion> consumer);
+
+    /**
+     * Calls the given consumer once for every region which intersects the given bounds, without allocating a list.
+     *
+     * @param bounds the bounds relative to this template
+     * @param consumer the consumer to accept each region
+     */
+    void forEachRegionIntersecting(BlockBounds bounds, Consumer<TemplateRegion> consumer);
+
+    default Stream<TemplateRegion> getTemplateRegions(String marker) {
+        return this.getTemplateRegionList(marker).stream();
+    }
+
+    default Stream<BlockBounds> getRegions(String marker) {
+        return this.getTemplateRegions(marker).map(TemplateRegion::getBounds);
+    }
+
+    @Nullable
+    default TemplateRegion getFirstTemplateRegion(String marker) {
+        List<TemplateRegion> regions = this.getTemplateRegionList(marker);
+        return !regions.isEmpty() ? regions.get(0) : null;
+    }
+
+    @Nullable
+    default BlockBounds getFirstRegion(String marker) {
+        TemplateRegion region = this.getFirstTemplateRegion(marker);
+        return region != null ? region.getBounds() : null;
+    }
+
+    /**
+     * Returns every region which contains the given position.
+     *
+     * @param pos the position relative to this template
+     * @return a list of the regions containing the position
+     */
+    default List<TemplateRegion> getRegionsAt(BlockPos pos) {
+        List<TemplateRegion> regions = new ArrayList<>();
+        this.forEachRegionAt(pos, regions::add);
+        return regions;
+    }
+
+    /**
+     * Returns every region which intersects the given bounds.
+     *
+     * @param bounds the bounds relative to this template
+     * @return a list of the regions intersecting the bounds
+     */
+    default List<TemplateRegion> getRegionsIntersecting(BlockBounds bounds) {
+        List<TemplateRegion> regions = new ArrayList<>();
+        this.forEachRegionIntersecting(bounds, regions::add);
+        return regions;
+    }
+
+    default BlockPos getTopPos(int x, int z, Heightmap.Type heightmap) {
+        int y = this.getTopY(x, z, heightmap);
+        return new BlockPos(x, y, z);
+    }
+
+    default boolean containsBlock(BlockPos pos) {
+        return !this.getBlockState(pos).isAir();
+    }
+
+    /**
+     * Returns a view of this template with the given mirror and rotation applied, in that order, to every block,
+     * block entity, entity and region. The transformed template is then moved so that the minimum corner of its
+     * bounds lies at the minimum corner of this template's bounds plus the given offset.
+     * <p>
+     * Nothing is copied: every query on the returned view is transformed and passed on to this template, which must
+     * therefore not be modified while the view is in use.
+     *
+     * @param rotation the rotation to apply
+     * @param mirror the mirror to apply
+     * @param offset the offset to move the transformed template by
+     * @return the transformed view
+     */
+    default MapTemplateView transformed(BlockRotation rotation, BlockMirror mirror, BlockPos offset) {
+        if (rotation == BlockRotation.NONE && mirror == BlockMirror.NONE && offset.equals(BlockPos.ORIGIN)) {
+            return this;
+        }
+        return new TransformedMapTemplateView(this, rotation, mirror, offset);
+    }
+}
@@ -0,0 +1,174 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.collection.PackedIntegerArray;
+import net.minecraft.world.chunk.IdListPalette;
+import net.minecraft.world.chunk.Palette;
+import net.minecraft.world.chunk.PalettedContainer;
+import org.jetbrains.annotations.Nullable;
+import xyz.nucleoid.plasmid.mixin.game.map.PalettedContainerAccess;
+
+import java.nio.LongBuffer;
+import java.util.function.Predicate;
+
+/**
+ * The blocks of a 16x16x16 section, packed in the same layout as a {@link PalettedContainer} but with the packed data
+ * held in direct memory. Only the palette is kept on the heap.
+ * <p>
+ * Sections are immutable once packed, and so may be shared between chunks and read from any thread.
+ */
+final class OffHeapSection {
+    private static final long SECTION_OVERHEAD_BYTES = 64;
+    private static final long PALETTE_ENTRY_BYTES = 8;
+
+    // the states referred to by each packed index, or null if the packed indices are global block state ids
+    @Nullable
+    private final BlockState[] palette;
+    private final int bits;
+    private final LongBuffer data;
+
+    private final int valuesPerLong;
+    private final long valueMask;
+
+    private OffHeapSection(@Nullable BlockState[] palette, int bits, LongBuffer data) {
+        this.palette = palette;
+        this.bits = bits;
+        this.data = data;
+        this.valuesPerLong = Long.SIZE / bits;
+        this.valueMask = (1L << bits) - 1;
+    }
+
+    /**
+     * Copies the blocks of the given container into a section with its packed data allocated from the given store.
+     *
+     * @param container the container to copy
+     * @param store the store to allocate packed data from
+     * @return the packed section
+     */
+    @SuppressWarnings("unchecked")
+    static OffHeapSection pack(PalettedContainer<BlockState> container, OffHeapSectionStore store) {
+        PalettedContainerAccess<BlockState> access = (PalettedContainerAccess<BlockState>) container;
+        Palette<BlockState> palette = access.getPalette();
+        int bits = access.getPaletteSize();
+
+        BlockState[] entries = null;
+        if (!(palette instanceof IdListPalette)) {
+            int capacity = 1 << bits;
+            int size = 0;
+            while (size < capacity && palette.getByIndex(size) != null) {
+                size++;
+            }
+
+            entries = new BlockState[size];
+            for (int i = 0; i < size; i++) {
+                entries[i] = palette.getByIndex(i);
+            }
+        }
+
+        return new OffHeapSection(entries, bits, store.allocate(access.getData().getStorage()));
+    }
+
+    BlockState get(int x, int y, int z) {
+        int index = y << 8 | z << 4 | x;
+        long word = this.data.get(index / this.valuesPerLong);
+        int value = (int) (word >>> (index % this.valuesPerLong * this.bits) & this.valueMask);
+        return this.lookup(value);
+    }
+
+    private BlockState lookup(int value) {
+        BlockState[] palette = this.palette;
+        BlockState state;
+        if (palette != null) {
+            state = value < palette.length ? palette[value] : null;
+        } else {
+            state = Block.STATE_IDS.get(value);
+        }
+        return state != null ? state : Blocks.AIR.getDefaultState();
+    }
+
+    /**
+     * Returns whether this section may contain a block matching the given predicate, by only testing the palette.
+     */
+    boolean hasAny(Predicate<BlockState> predicate) {
+        BlockState[] palette = this.palette;
+        if (palette == null) {
+            return true;
+        }
+
+        for (BlockState state : palette) {
+            if (predicate.test(state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the contents of the given container with the blocks in this section. The packed data is copied
+     * directly when the palette indices of the target line up with this section.
+     *
+     * @param to the container to replace the contents of
+     */
+    @SuppressWarnings("unchecked")
+    void copyTo(PalettedContainer<BlockState> to) {
+        PalettedContainerAccess<BlockState> target = (PalettedContainerAccess<BlockState>) to;
+
+        // reset the target to an empty palette before sizing it to match this section
+        target.callSetPaletteSize(0);
+        target.callSetPaletteSize(this.bits);
+
+        Palette<BlockState> targetPalette = target.getPalette();
+        BlockState[] palette = this.palette;
+
+        if (palette == null) {
+            if (targetPalette instanceof IdListPalette && target.getPaletteSize() == this.bits) {
+                this.copyStorage(target.getData());
+            } else {
+                this.copySlow(to);
+            }
+            return;
+        }
+
+        boolean identity = true;
+        for (int index = 0; index < palette.length; index++) {
+            identity &= targetPalette.getIndex(palette[index]) == index;
+        }
+
+        if (identity && target.getPalette() == targetPalette && target.getPaletteSize() == this.bits) {
+            this.copyStorage(target.getData());
+        } else {
+            this.copySlow(to);
+        }
+    }
+
+    private void copyStorage(PackedIntegerArray to) {
+        this.data.duplicate().get(to.getStorage());
+    }
+
+    private void copySlow(PalettedContainer<BlockState> to) {
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    to.set(x, y, z, this.get(x, y, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the palette size of this section, as the number of bits used to store each block
+     */
+    int getBits() {
+        return this.bits;
+    }
+
+    /**
+     * @return the estimated number of heap bytes retained by this section, which excludes its packed data
+     */
+    long estimateRetainedBytes() {
+        long paletteBytes = this.palette != null ? this.palette.length * PALETTE_ENTRY_BYTES : 0;
+        return SECTION_OVERHEAD_BYTES + paletteBytes;
+    }
+}
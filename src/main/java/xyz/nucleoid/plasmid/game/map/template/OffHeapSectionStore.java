@@ -0,0 +1,59 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates the packed block data of {@link OffHeapSection}s from pages of direct memory, so that the data of a
+ * template's sections is not held on the heap.
+ * <p>
+ * Allocations are never freed individually: the pages are released together once the store and every section
+ * allocated from it are no longer reachable.
+ */
+final class OffHeapSectionStore {
+    private static final int PAGE_BYTES = 1024 * 1024;
+
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    private ByteBuffer page;
+
+    /**
+     * Copies the given packed data into direct memory.
+     *
+     * @param storage the packed data to copy
+     * @return a buffer over the copied data in direct memory
+     */
+    synchronized LongBuffer allocate(long[] storage) {
+        int bytes = storage.length * Long.BYTES;
+
+        ByteBuffer page = this.page;
+        if (page == null || page.remaining() < bytes) {
+            page = ByteBuffer.allocateDirect(Math.max(PAGE_BYTES, bytes)).order(ByteOrder.nativeOrder());
+            this.pages.add(page);
+            this.page = page;
+        }
+
+        ByteBuffer slice = page.slice().order(ByteOrder.nativeOrder());
+        slice.limit(bytes);
+        page.position(page.position() + bytes);
+
+        LongBuffer data = slice.asLongBuffer();
+        data.put(storage);
+        data.flip();
+
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the number of bytes of direct memory reserved by this store
+     */
+    synchronized long getReservedBytes() {
+        long bytes = 0;
+        for (ByteBuffer page : this.pages) {
+            bytes += page.capacity();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,205 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.util.collection.PackedIntegerArray;
+import net.minecraft.world.chunk.IdListPalette;
+import net.minecraft.world.chunk.Palette;
+import net.minecraft.world.chunk.PalettedContainer;
+import xyz.nucleoid.plasmid.mixin.game.map.PalettedContainerAccess;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for moving whole 16x16x16 {@link PalettedContainer}s around without going through individual block access.
+ */
+final class PalettedContainers {
+    private static final long CONTAINER_OVERHEAD_BYTES = 128;
+    private static final long PALETTE_ENTRY_BYTES = 16;
+
+    private PalettedContainers() {
+    }
+
+    /**
+     * Replaces the contents of the target container with the contents of the source container.
+     * <p>
+     * The palette of the source is copied into the target and the packed data is copied directly when the palette
+     * indices line up, or remapped per entry otherwise. If the target palette had to be resized while copying, this
+     * falls back to setting every entry individually.
+     *
+     * @param from the container to copy from
+     * @param to the container to replace the contents of
+     * @param <T> the type of element stored in the containers
+     */
+    @SuppressWarnings("unchecked")
+    static <T> void copy(PalettedContainer<T> from, PalettedContainer<T> to) {
+        PalettedContainerAccess<T> source = (PalettedContainerAccess<T>) from;
+        PalettedContainerAccess<T> target = (PalettedContainerAccess<T>) to;
+
+        int paletteSize = source.getPaletteSize();
+
+        // reset the target to an empty palette before sizing it to match the source
+        target.callSetPaletteSize(0);
+        target.callSetPaletteSize(paletteSize);
+
+        Palette<T> sourcePalette = source.getPalette();
+        Palette<T> targetPalette = target.getPalette();
+        PackedIntegerArray sourceData = source.getData();
+
+        if (sourcePalette instanceof IdListPalette) {
+            if (targetPalette instanceof IdListPalette && target.getPaletteSize() == paletteSize) {
+                copyStorage(sourceData, target.getData());
+            } else {
+                copySlow(from, to);
+            }
+            return;
+        }
+
+        int capacity = 1 << paletteSize;
+        int[] remap = new int[capacity];
+        boolean identity = true;
+
+        for (int index = 0; index < capacity; index++) {
+            T entry = sourcePalette.getByIndex(index);
+            if (entry == null) {
+                break;
+            }
+
+            int targetIndex = targetPalette.getIndex(entry);
+            remap[index] = targetIndex;
+            identity &= targetIndex == index;
+        }
+
+        if (target.getPalette() != targetPalette || target.getPaletteSize() != paletteSize) {
+            copySlow(from, to);
+            return;
+        }
+
+        PackedIntegerArray targetData = target.getData();
+        if (identity) {
+            copyStorage(sourceData, targetData);
+        } else {
+            for (int i = 0; i < 4096; i++) {
+                targetData.set(i, remap[sourceData.get(i)]);
+            }
+        }
+    }
+
+    /**
+     * Replaces every entry of the given container with the given value.
+     *
+     * @param container the container to fill
+     * @param value the value to fill with
+     * @param <T> the type of element stored in the container
+     */
+    @SuppressWarnings("unchecked")
+    static <T> void fill(PalettedContainer<T> container, T value) {
+        PalettedContainerAccess<T> access = (PalettedContainerAccess<T>) container;
+
+        // resizing the palette resets the container so that every entry refers to the default value at index 0
+        access.callSetPaletteSize(0);
+
+        int index = access.getPalette().getIndex(value);
+        if (index != 0) {
+            PackedIntegerArray data = access.getData();
+            for (int i = 0; i < 4096; i++) {
+                data.set(i, index);
+            }
+        }
+    }
+
+    /**
+     * Estimates the number of heap bytes retained by the given container, including its palette and packed data.
+     *
+     * @param container the container to estimate
+     * @return the estimated size in bytes
+     */
+    @SuppressWarnings("unchecked")
+    static long estimateRetainedBytes(PalettedContainer<?> container) {
+        PalettedContainerAccess<Object> access = (PalettedContainerAccess<Object>) container;
+
+        long dataBytes = (long) access.getData().getStorage().length * Long.BYTES;
+        if (access.getPalette() instanceof IdListPalette) {
+            return CONTAINER_OVERHEAD_BYTES + dataBytes;
+        }
+
+        long paletteBytes = (1L << access.getPaletteSize()) * PALETTE_ENTRY_BYTES;
+        return CONTAINER_OVERHEAD_BYTES + dataBytes + paletteBytes;
+    }
+
+    /**
+     * Creates a key identifying the exact contents of the given container: two containers with equal keys have the same
+     * palette in the same order and the same packed data.
+     * <p>
+     * The key refers to the data of the container directly, so it is only valid until the container is next modified.
+     *
+     * @param container the container to identify
+     * @return the content key
+     */
+    @SuppressWarnings("unchecked")
+    static ContentKey contentKey(PalettedContainer<?> container) {
+        PalettedContainerAccess<Object> access = (PalettedContainerAccess<Object>) container;
+        Palette<Object> palette = access.getPalette();
+        int paletteSize = access.getPaletteSize();
+
+        Object[] entries = null;
+        if (!(palette instanceof IdListPalette)) {
+            int capacity = 1 << paletteSize;
+            int size = 0;
+            while (size < capacity && palette.getByIndex(size) != null) {
+                size++;
+            }
+
+            entries = new Object[size];
+            for (int i = 0; i < size; i++) {
+                entries[i] = palette.getByIndex(i);
+            }
+        }
+
+        return new ContentKey(paletteSize, entries, access.getData().getStorage());
+    }
+
+    private static void copyStorage(PackedIntegerArray from, PackedIntegerArray to) {
+        long[] storage = from.getStorage();
+        System.arraycopy(storage, 0, to.getStorage(), 0, storage.length);
+    }
+
+    private static <T> void copySlow(PalettedContainer<T> from, PalettedContainer<T> to) {
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    to.set(x, y, z, from.get(x, y, z));
+                }
+            }
+        }
+    }
+
+    static final class ContentKey {
+        private final int paletteSize;
+        private final Object[] palette;
+        private final long[] storage;
+        private final int hashCode;
+
+        private ContentKey(int paletteSize, Object[] palette, long[] storage) {
+            this.paletteSize = paletteSize;
+            this.palette = palette;
+            this.storage = storage;
+            this.hashCode = 31 * (31 * paletteSize + Arrays.hashCode(palette)) + Arrays.hashCode(storage);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof ContentKey)) return false;
+
+            ContentKey key = (ContentKey) obj;
+            return this.hashCode == key.hashCode
+                    && this.paletteSize == key.paletteSize
+                    && Arrays.equals(this.palette, key.palette)
+                    && Arrays.equals(this.storage, key.storage);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
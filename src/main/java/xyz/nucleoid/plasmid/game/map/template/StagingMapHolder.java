@@ -0,0 +1,10 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import javax.annotation.Nullable;
+
+public interface StagingMapHolder {
+    void setStagingMapManager(@Nullable StagingMapManager manager);
+
+    @Nullable
+    StagingMapManager getStagingMapManager();
+}
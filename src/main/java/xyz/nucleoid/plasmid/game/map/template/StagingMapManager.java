@@ -3,7 +3,9 @@ package xyz.nucleoid.plasmid.game.map.template;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
 import net.minecraft.world.PersistentState;
+import net.minecraft.world.World;
 import org.jetbrains.annotations.Nullable;
 import xyz.nucleoid.plasmid.Plasmid;
 import xyz.nucleoid.plasmid.util.BlockBounds;
@@ -28,13 +30,41 @@ public final class StagingMapManager extends PersistentState {
         return world.getPersistentStateManager().getOrCreate(() -> new StagingMapManager(world), KEY);
     }
 
+    /**
+     * Notifies any staging maps containing the given position that a block or block entity has changed, so that the
+     * next compile knows to copy it from the world again.
+     *
+     * @param world the world the change happened in
+     * @param pos the changed position
+     */
+    public static void onBlockChanged(World world, BlockPos pos) {
+        if (!(world instanceof StagingMapHolder)) {
+            return;
+        }
+
+        StagingMapManager manager = ((StagingMapHolder) world).getStagingMapManager();
+        if (manager != null) {
+            for (StagingMapTemplate map : manager.stagingMaps.values()) {
+                if (map.getBounds().contains(pos)) {
+                    map.markChanged(pos);
+                }
+            }
+        }
+    }
+
     public StagingMapTemplate add(Identifier identifier, BlockBounds bounds) {
         StagingMapTemplate map = new StagingMapTemplate(this.world, identifier, bounds);
         this.stagingMaps.put(identifier, map);
         this.setDirty(true);
+        this.updateTracking();
         return map;
     }
 
+    // only worlds with staging maps are notified of block changes, so that other worlds skip the lookup entirely
+    private void updateTracking() {
+        ((StagingMapHolder) this.world).setStagingMapManager(this.stagingMaps.isEmpty() ? null : this);
+    }
+
     @Nullable
     public StagingMapTemplate get(Identifier identifier) {
         return this.stagingMaps.get(identifier);
@@ -57,6 +87,8 @@ public final class StagingMapManager extends PersistentState {
             CompoundTag root = tag.getCompound(key);
             this.stagingMaps.put(identifier, StagingMapTemplate.deserialize(this.world, root));
         }
+
+        this.updateTracking();
     }
 
     @Override
@@ -0,0 +1,521 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.entity.Entity;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.LightType;
+import net.minecraft.world.chunk.ChunkNibbleArray;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.light.ChunkLightingView;
+import org.jetbrains.annotations.Nullable;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A copy of the blocks, block entities and entities within the bounds of a staging map, taken on the server thread so
+ * that a {@link MapTemplate} can be built from it on another thread.
+ * <p>
+ * Blocks are captured per world section by copying the section's paletted container, and sections which are empty
+ * are skipped entirely.
+ * <p>
+ * A snapshot may also cover only some chunks of the template, in which case it is used to patch those chunks into a
+ * copy of a previously compiled template.
+ * <p>
+ * Light levels may also be captured, in which case they are always captured for the whole template, as a block change
+ * can affect light far beyond its own section.
+ */
+final class StagingMapSnapshot {
+    private final BlockBounds bounds;
+    private final BlockPos origin;
+
+    // the template chunks covered by this snapshot, or null if it covers the whole template
+    @Nullable
+    private final LongSet templateChunks;
+
+    private final List<Section> sections = new ArrayList<>();
+    private final Long2ObjectMap<CompoundTag> blockEntities = new Long2ObjectOpenHashMap<>();
+    private final List<EntitySnapshot> entities = new ArrayList<>();
+
+    @Nullable
+    private LightSnapshot light;
+
+    private StagingMapSnapshot(BlockBounds bounds, @Nullable LongSet templateChunks) {
+        this.bounds = bounds;
+        this.origin = bounds.getMin();
+        this.templateChunks = templateChunks;
+    }
+
+    /**
+     * Captures the blocks and block entities within the given bounds of the world. This must be called on the server
+     * thread.
+     *
+     * @param world the world to capture from
+     * @param bounds the bounds to capture
+     * @return the snapshot
+     */
+    static StagingMapSnapshot capture(ServerWorld world, BlockBounds bounds) {
+        StagingMapSnapshot snapshot = new StagingMapSnapshot(bounds, null);
+
+        BlockPos min = bounds.getMin();
+        BlockPos max = bounds.getMax();
+
+        for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+            for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+                WorldChunk chunk = world.getChunk(chunkX, chunkZ);
+
+                ChunkSection[] sections = chunk.getSectionArray();
+                for (int sectionY = Math.max(min.getY() >> 4, 0); sectionY <= Math.min(max.getY() >> 4, sections.length - 1); sectionY++) {
+                    snapshot.captureSection(chunkX, sectionY, chunkZ, sections[sectionY]);
+                }
+
+                snapshot.captureBlockEntities(chunk);
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Captures the blocks within the given bounds from the given world sections rather than from a world, without any
+     * block entities. This is used to measure compiling without a running server.
+     *
+     * @param sections the world sections to capture, keyed by their {@link ChunkSectionPos}
+     * @param bounds the bounds to capture
+     * @return the snapshot
+     */
+    static StagingMapSnapshot capture(Long2ObjectMap<ChunkSection> sections, BlockBounds bounds) {
+        StagingMapSnapshot snapshot = new StagingMapSnapshot(bounds, null);
+
+        for (Long2ObjectMap.Entry<ChunkSection> entry : Long2ObjectMaps.fastIterable(sections)) {
+            long sectionPos = entry.getLongKey();
+            snapshot.captureSection(ChunkSectionPos.unpackX(sectionPos), ChunkSectionPos.unpackY(sectionPos), ChunkSectionPos.unpackZ(sectionPos), entry.getValue());
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Captures only the template chunks which overlap the given world sections, so that they can be patched into a
+     * previously compiled template. This must be called on the server thread.
+     *
+     * @param world the world to capture from
+     * @param bounds the bounds of the staging map
+     * @param worldSections the positions of the world sections which have changed
+     * @return the snapshot
+     */
+    static StagingMapSnapshot captureSections(ServerWorld world, BlockBounds bounds, LongSet worldSections) {
+        LongSet templateChunks = getTemplateChunks(bounds, worldSections);
+        StagingMapSnapshot snapshot = new StagingMapSnapshot(bounds, templateChunks);
+
+        // a template chunk can span up to 8 world sections when the bounds are not section-aligned: we need all of them
+        LongSet capturedSections = getWorldSections(bounds, templateChunks);
+        LongSet capturedColumns = new LongOpenHashSet();
+
+        LongIterator iterator = capturedSections.iterator();
+        while (iterator.hasNext()) {
+            long sectionPos = iterator.nextLong();
+            int sectionX = ChunkSectionPos.unpackX(sectionPos);
+            int sectionY = ChunkSectionPos.unpackY(sectionPos);
+            int sectionZ = ChunkSectionPos.unpackZ(sectionPos);
+
+            WorldChunk chunk = world.getChunk(sectionX, sectionZ);
+
+            ChunkSection[] sections = chunk.getSectionArray();
+            if (sectionY >= 0 && sectionY < sections.length) {
+                snapshot.captureSection(sectionX, sectionY, sectionZ, sections[sectionY]);
+            }
+
+            if (capturedColumns.add(ChunkPos.toLong(sectionX, sectionZ))) {
+                snapshot.captureBlockEntities(chunk);
+            }
+        }
+
+        return snapshot;
+    }
+
+    private static LongSet getTemplateChunks(BlockBounds bounds, LongSet worldSections) {
+        BlockPos origin = bounds.getMin();
+        LongSet templateChunks = new LongOpenHashSet();
+
+        LongIterator iterator = worldSections.iterator();
+        while (iterator.hasNext()) {
+            long sectionPos = iterator.nextLong();
+            int minX = ChunkSectionPos.unpackX(sectionPos) << 4;
+            int minY = ChunkSectionPos.unpackY(sectionPos) << 4;
+            int minZ = ChunkSectionPos.unpackZ(sectionPos) << 4;
+
+            BlockBounds section = new BlockBounds(new BlockPos(minX, minY, minZ), new BlockPos(minX + 15, minY + 15, minZ + 15));
+            BlockBounds changed = section.intersection(bounds);
+            if (changed == null) {
+                continue;
+            }
+
+            BlockPos min = changed.getMin().subtract(origin);
+            BlockPos max = changed.getMax().subtract(origin);
+            for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+                for (int chunkY = min.getY() >> 4; chunkY <= max.getY() >> 4; chunkY++) {
+                    for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+                        templateChunks.add(ChunkSectionPos.asLong(chunkX, chunkY, chunkZ));
+                    }
+                }
+            }
+        }
+
+        return templateChunks;
+    }
+
+    private static LongSet getWorldSections(BlockBounds bounds, LongSet templateChunks) {
+        BlockPos origin = bounds.getMin();
+        LongSet worldSections = new LongOpenHashSet();
+
+        LongIterator iterator = templateChunks.iterator();
+        while (iterator.hasNext()) {
+            BlockBounds chunk = getTemplateChunkBounds(iterator.nextLong(), origin).intersection(bounds);
+            if (chunk == null) {
+                continue;
+            }
+
+            BlockPos min = chunk.getMin();
+            BlockPos max = chunk.getMax();
+            for (int sectionZ = min.getZ() >> 4; sectionZ <= max.getZ() >> 4; sectionZ++) {
+                for (int sectionY = min.getY() >> 4; sectionY <= max.getY() >> 4; sectionY++) {
+                    for (int sectionX = min.getX() >> 4; sectionX <= max.getX() >> 4; sectionX++) {
+                        worldSections.add(ChunkSectionPos.asLong(sectionX, sectionY, sectionZ));
+                    }
+                }
+            }
+        }
+
+        return worldSections;
+    }
+
+    /**
+     * @return the world-space bounds of the template chunk at the given position
+     */
+    private static BlockBounds getTemplateChunkBounds(long templateChunk, BlockPos origin) {
+        int minX = (ChunkSectionPos.unpackX(templateChunk) << 4) + origin.getX();
+        int minY = (ChunkSectionPos.unpackY(templateChunk) << 4) + origin.getY();
+        int minZ = (ChunkSectionPos.unpackZ(templateChunk) << 4) + origin.getZ();
+        return new BlockBounds(new BlockPos(minX, minY, minZ), new BlockPos(minX + 15, minY + 15, minZ + 15));
+    }
+
+    private void captureSection(int sectionX, int sectionY, int sectionZ, ChunkSection section) {
+        if (ChunkSection.isEmpty(section)) {
+            return;
+        }
+
+        PalettedContainer<BlockState> container = MapTemplate.Chunk.createContainer();
+        PalettedContainers.copy(section.getContainer(), container);
+        this.sections.add(new Section(sectionX, sectionY, sectionZ, container));
+    }
+
+    private void captureBlockEntities(WorldChunk chunk) {
+        for (Map.Entry<BlockPos, BlockEntity> entry : chunk.getBlockEntities().entrySet()) {
+            BlockPos pos = entry.getKey();
+            if (!this.bounds.contains(pos)) {
+                continue;
+            }
+
+            BlockPos localPos = pos.subtract(this.origin);
+            if (this.covers(MapTemplate.chunkPos(localPos))) {
+                this.blockEntities.put(localPos.asLong(), entry.getValue().toTag(new CompoundTag()));
+            }
+        }
+    }
+
+    /**
+     * Captures the given entity. This must be called on the server thread.
+     */
+    void captureEntity(Entity entity) {
+        Vec3d pos = entity.getPos().subtract(this.origin.getX(), this.origin.getY(), this.origin.getZ());
+
+        CompoundTag tag = MapTemplate.Chunk.createEntityTag(entity, pos);
+        if (tag != null) {
+            this.entities.add(new EntitySnapshot(pos, tag));
+        }
+    }
+
+    /**
+     * Captures the block and sky light levels of every world section overlapping a chunk of the template. This must be
+     * called on the server thread.
+     *
+     * @param world the world to capture from
+     */
+    void captureLighting(ServerWorld world) {
+        LightSnapshot light = new LightSnapshot(getTemplateChunkExtent(this.bounds));
+
+        BlockPos min = this.origin;
+        BlockPos max = this.origin.add(light.extent.getX() << 4 | 15, light.extent.getY() << 4 | 15, light.extent.getZ() << 4 | 15);
+
+        ChunkLightingView blockLight = world.getLightingProvider().get(LightType.BLOCK);
+        ChunkLightingView skyLight = world.getLightingProvider().get(LightType.SKY);
+
+        for (int sectionZ = min.getZ() >> 4; sectionZ <= max.getZ() >> 4; sectionZ++) {
+            for (int sectionY = min.getY() >> 4; sectionY <= max.getY() >> 4; sectionY++) {
+                for (int sectionX = min.getX() >> 4; sectionX <= max.getX() >> 4; sectionX++) {
+                    ChunkSectionPos sectionPos = ChunkSectionPos.from(sectionX, sectionY, sectionZ);
+                    light.capture(LightType.BLOCK, sectionPos, blockLight.getLightSection(sectionPos));
+                    light.capture(LightType.SKY, sectionPos, skyLight.getLightSection(sectionPos));
+                }
+            }
+        }
+
+        this.light = light;
+    }
+
+    /**
+     * @return the largest template chunk position within the given bounds
+     */
+    private static BlockPos getTemplateChunkExtent(BlockBounds bounds) {
+        BlockPos size = bounds.getMax().subtract(bounds.getMin());
+        return new BlockPos(size.getX() >> 4, size.getY() >> 4, size.getZ() >> 4);
+    }
+
+    private boolean covers(long templateChunk) {
+        return this.templateChunks == null || this.templateChunks.contains(templateChunk);
+    }
+
+    /**
+     * Adds the captured blocks, block entities and entities to the given template. This may be called off-thread.
+     * <p>
+     * If this snapshot only covers some chunks of the template, every other chunk and block entity is taken from the
+     * previously compiled template. Those chunks share their blocks with the previous template until either is written
+     * to, and the previous template itself is never modified.
+     *
+     * @param template the template to add to
+     * @param previous the previously compiled template, required if this snapshot only covers some chunks
+     */
+    void addTo(MapTemplate template, @Nullable MapTemplate previous) {
+        this.addBlocksTo(template, previous);
+
+        // light is baked last, as setting blocks discards any baked light
+        if (this.light != null) {
+            template.lighting = this.light.bake(this.origin);
+        }
+    }
+
+    private void addBlocksTo(MapTemplate template, @Nullable MapTemplate previous) {
+        if (this.templateChunks != null) {
+            if (previous == null) {
+                throw new IllegalArgumentException("A partial snapshot requires a previous template to patch");
+            }
+            this.addUnchangedFrom(previous, template);
+        }
+
+        for (Section section : this.sections) {
+            section.addTo(template, this.bounds, this.templateChunks);
+        }
+
+        for (Long2ObjectMap.Entry<CompoundTag> entry : Long2ObjectMaps.fastIterable(this.blockEntities)) {
+            template.setBlockEntityTag(BlockPos.fromLong(entry.getLongKey()), entry.getValue());
+        }
+
+        for (EntitySnapshot entity : this.entities) {
+            template.addEntityTag(entity.pos, entity.tag);
+        }
+    }
+
+    private void addUnchangedFrom(MapTemplate previous, MapTemplate template) {
+        for (Long2ObjectMap.Entry<MapTemplate.Chunk> entry : Long2ObjectMaps.fastIterable(previous.chunks)) {
+            long chunkPos = entry.getLongKey();
+            if (this.covers(chunkPos)) {
+                continue;
+            }
+
+            // chunks are copied so that the previous template is never modified, and without their entities, as those
+            // are always captured again
+            template.chunks.put(chunkPos, entry.getValue().copyBlocks());
+        }
+    }
+
+    private static final class Section {
+        final int sectionX;
+        final int sectionY;
+        final int sectionZ;
+        final PalettedContainer<BlockState> container;
+
+        Section(int sectionX, int sectionY, int sectionZ, PalettedContainer<BlockState> container) {
+            this.sectionX = sectionX;
+            this.sectionY = sectionY;
+            this.sectionZ = sectionZ;
+            this.container = container;
+        }
+
+        void addTo(MapTemplate template, BlockBounds bounds, @Nullable LongSet templateChunks) {
+            BlockPos origin = bounds.getMin();
+
+            int minX = this.sectionX << 4;
+            int minY = this.sectionY << 4;
+            int minZ = this.sectionZ << 4;
+
+            BlockBounds section = new BlockBounds(new BlockPos(minX, minY, minZ), new BlockPos(minX + 15, minY + 15, minZ + 15));
+            BlockBounds included = section.intersection(bounds);
+            if (included == null) {
+                return;
+            }
+
+            BlockPos localMin = included.getMin().subtract(origin);
+            BlockPos localMax = included.getMax().subtract(origin);
+
+            // when this section lines up with a template chunk, the container can be copied across as a whole
+            if (isAligned(origin) && included.getMin().equals(section.getMin()) && included.getMax().equals(section.getMax())) {
+                int chunkX = localMin.getX() >> 4;
+                int chunkY = localMin.getY() >> 4;
+                int chunkZ = localMin.getZ() >> 4;
+                if (templateChunks == null || templateChunks.contains(ChunkSectionPos.asLong(chunkX, chunkY, chunkZ))) {
+                    template.copySection(chunkX, chunkY, chunkZ, this.container);
+                }
+                return;
+            }
+
+            if (templateChunks == null) {
+                this.copyBlocks(template, origin, included);
+                return;
+            }
+
+            // only copy into the template chunks covered by the snapshot, as any others may be shared
+            for (int chunkZ = localMin.getZ() >> 4; chunkZ <= localMax.getZ() >> 4; chunkZ++) {
+                for (int chunkY = localMin.getY() >> 4; chunkY <= localMax.getY() >> 4; chunkY++) {
+                    for (int chunkX = localMin.getX() >> 4; chunkX <= localMax.getX() >> 4; chunkX++) {
+                        long chunkPos = ChunkSectionPos.asLong(chunkX, chunkY, chunkZ);
+                        if (!templateChunks.contains(chunkPos)) {
+                            continue;
+                        }
+
+                        BlockBounds chunk = getTemplateChunkBounds(chunkPos, origin).intersection(included);
+                        if (chunk != null) {
+                            this.copyBlocks(template, origin, chunk);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void copyBlocks(MapTemplate template, BlockPos origin, BlockBounds bounds) {
+            BlockPos min = bounds.getMin();
+            BlockPos max = bounds.getMax();
+
+            BlockPos.Mutable localPos = new BlockPos.Mutable();
+            for (int y = min.getY(); y <= max.getY(); y++) {
+                for (int z = min.getZ(); z <= max.getZ(); z++) {
+                    for (int x = min.getX(); x <= max.getX(); x++) {
+                        BlockState state = this.container.get(x & 15, y & 15, z & 15);
+                        if (!state.isAir()) {
+                            localPos.set(x - origin.getX(), y - origin.getY(), z - origin.getZ());
+                            template.setBlockState(localPos, state);
+                        }
+                    }
+                }
+            }
+        }
+
+        private static boolean isAligned(BlockPos origin) {
+            return (origin.getX() & 15) == 0 && (origin.getY() & 15) == 0 && (origin.getZ() & 15) == 0;
+        }
+    }
+
+    private static final class LightSnapshot {
+        final BlockPos extent;
+
+        final Long2ObjectMap<ChunkNibbleArray> blockLight = new Long2ObjectOpenHashMap<>();
+        final Long2ObjectMap<ChunkNibbleArray> skyLight = new Long2ObjectOpenHashMap<>();
+
+        LightSnapshot(BlockPos extent) {
+            this.extent = extent;
+        }
+
+        void capture(LightType type, ChunkSectionPos sectionPos, @Nullable ChunkNibbleArray light) {
+            if (light != null && !light.isUninitialized()) {
+                this.getMap(type).put(sectionPos.asLong(), light.copy());
+            }
+        }
+
+        private Long2ObjectMap<ChunkNibbleArray> getMap(LightType type) {
+            return type == LightType.BLOCK ? this.blockLight : this.skyLight;
+        }
+
+        TemplateLighting bake(BlockPos origin) {
+            TemplateLighting lighting = new TemplateLighting();
+
+            for (int chunkZ = 0; chunkZ <= this.extent.getZ(); chunkZ++) {
+                for (int chunkY = 0; chunkY <= this.extent.getY(); chunkY++) {
+                    for (int chunkX = 0; chunkX <= this.extent.getX(); chunkX++) {
+                        long chunkPos = ChunkSectionPos.asLong(chunkX, chunkY, chunkZ);
+                        int minX = (chunkX << 4) + origin.getX();
+                        int minY = (chunkY << 4) + origin.getY();
+                        int minZ = (chunkZ << 4) + origin.getZ();
+
+                        for (LightType type : LightType.values()) {
+                            ChunkNibbleArray light = this.bakeChunk(type, minX, minY, minZ);
+                            if (light != null) {
+                                lighting.put(type, chunkPos, light);
+                            }
+                        }
+                    }
+                }
+            }
+
+            return lighting;
+        }
+
+        @Nullable
+        private ChunkNibbleArray bakeChunk(LightType type, int minX, int minY, int minZ) {
+            Long2ObjectMap<ChunkNibbleArray> map = this.getMap(type);
+
+            // when the template chunk lines up with a world section, its light can be taken as a whole
+            if ((minX & 15) == 0 && (minY & 15) == 0 && (minZ & 15) == 0) {
+                return map.get(ChunkSectionPos.asLong(minX >> 4, minY >> 4, minZ >> 4));
+            }
+
+            ChunkNibbleArray baked = null;
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        int worldX = minX + x;
+                        int worldY = minY + y;
+                        int worldZ = minZ + z;
+
+                        ChunkNibbleArray light = map.get(ChunkSectionPos.asLong(worldX >> 4, worldY >> 4, worldZ >> 4));
+                        if (light == null) {
+                            continue;
+                        }
+
+                        if (baked == null) {
+                            baked = new ChunkNibbleArray();
+                        }
+                        baked.set(x, y, z, light.get(worldX & 15, worldY & 15, worldZ & 15));
+                    }
+                }
+            }
+
+            return baked;
+        }
+    }
+
+    private static final class EntitySnapshot {
+        final Vec3d pos;
+        final CompoundTag tag;
+
+        EntitySnapshot(Vec3d pos, CompoundTag tag) {
+            this.pos = pos;
+            this.tag = tag;
+        }
+    }
+}
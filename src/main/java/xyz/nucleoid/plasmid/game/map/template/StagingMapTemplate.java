@@ -1,8 +1,8 @@
 package xyz.nucleoid.plasmid.game.map.template;
 
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import net.fabricmc.fabric.api.util.NbtType;
-import net.minecraft.block.BlockState;
-import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.EntityType;
 import net.minecraft.nbt.CompoundTag;
@@ -11,12 +11,16 @@ import net.minecraft.nbt.NbtHelper;
 import net.minecraft.nbt.StringTag;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.Util;
 import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.math.Vec3d;
+import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.util.registry.Registry;
+import org.jetbrains.annotations.Nullable;
 import xyz.nucleoid.plasmid.util.BlockBounds;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 /**
  * A staging map represents an in-world map template before it has been compiled to a static file.
@@ -38,6 +42,11 @@ public final class StagingMapTemplate {
     /* Data */
     private CompoundTag data;
 
+    /* Compilation */
+    private final LongSet changedSections = new LongOpenHashSet();
+    private CompletableFuture<MapTemplate> lastCompiled;
+    private boolean lastCompiledEntities;
+
     public StagingMapTemplate(ServerWorld world, Identifier identifier, BlockBounds bounds) {
         this.world = world;
         this.identifier = identifier;
@@ -59,6 +68,17 @@ public final class StagingMapTemplate {
         this.setDirty();
     }
 
+    /**
+     * Marks the world section containing the given position as changed since this map was last compiled.
+     *
+     * @param pos the changed position in the world
+     */
+    void markChanged(BlockPos pos) {
+        if (this.lastCompiled != null) {
+            this.changedSections.add(ChunkSectionPos.asLong(pos.getX() >> 4, pos.getY() >> 4, pos.getZ() >> 4));
+        }
+    }
+
     public Identifier getIdentifier() {
         return this.identifier;
     }
@@ -186,41 +206,123 @@ public final class StagingMapTemplate {
      * <p>
      * It copies the block and entity data from the world and stores it within the template.
      * All positions are made relative.
+     * <p>
+     * If this map has been compiled before, only the sections which have changed since are copied from the world again.
      *
      * @param includeEntities True if entities should be included, else false.
-     * @return The compiled map.
+     * @return A future to the compiled map.
+     * @see StagingMapTemplate#compile(boolean, boolean)
      */
-    public MapTemplate compile(boolean includeEntities) {
-        MapTemplate map = MapTemplate.createEmpty();
-        map.bounds = this.globalToLocal(this.bounds);
-        map.setData(this.getData());
+    public CompletableFuture<MapTemplate> compile(boolean includeEntities) {
+        return this.compile(includeEntities, true);
+    }
 
+    /**
+     * Compiles this staging map template into a map template.
+     * <p>
+     * It copies the block and entity data from the world and stores it within the template.
+     * All positions are made relative.
+     * <p>
+     * The world is only read on the calling thread, which must be the server thread. The template itself is built
+     * from that snapshot on a worker thread.
+     * <p>
+     * When compiling incrementally, block changes since the last compile are patched into a copy of the previously
+     * compiled template. Entities are always copied from the world again. The previous template is kept in memory
+     * while the server is running, and a full compile is done if there is none.
+     *
+     * @param includeEntities True if entities should be included, else false.
+     * @param incremental True if only changed sections should be copied from the world, if possible.
+     * @return A future to the compiled map.
+     * @see StagingMapTemplate#compile(boolean, boolean, boolean)
+     */
+    public CompletableFuture<MapTemplate> compile(boolean includeEntities, boolean incremental) {
+        return this.compile(includeEntities, incremental, false);
+    }
+
+    /**
+     * Compiles this staging map template into a map template.
+     * <p>
+     * When baking lighting, the current block and sky light levels of the world are stored in the template as well, so
+     * that they do not need to be computed again when the template is generated at a section-aligned origin.
+     *
+     * @param includeEntities True if entities should be included, else false.
+     * @param incremental True if only changed sections should be copied from the world, if possible.
+     * @param bakeLighting True if light levels should be stored in the template, else false.
+     * @return A future to the compiled map.
+     * @see StagingMapTemplate#compile(boolean, boolean)
+     */
+    public CompletableFuture<MapTemplate> compile(boolean includeEntities, boolean incremental, boolean bakeLighting) {
+        CompletableFuture<MapTemplate> previous = this.lastCompiled;
+        incremental &= previous != null && !previous.isCompletedExceptionally() && this.lastCompiledEntities == includeEntities;
+
+        StagingMapSnapshot snapshot;
+        if (incremental) {
+            snapshot = StagingMapSnapshot.captureSections(this.world, this.bounds, this.changedSections);
+        } else {
+            snapshot = StagingMapSnapshot.capture(this.world, this.bounds);
+        }
+        this.changedSections.clear();
+
+        if (bakeLighting) {
+            snapshot.captureLighting(this.world);
+        }
+
+        if (includeEntities) {
+            this.world.getEntitiesByClass(Entity.class, this.bounds.toBox(), entity -> !entity.removed
+                    && (this.containsEntity(entity.getUuid()) || this.hasEntityType(entity.getType())))
+                    .forEach(snapshot::captureEntity);
+        }
+
+        BlockBounds localBounds = this.globalToLocal(this.bounds);
+        CompoundTag data = this.getData().copy();
+
+        List<TemplateRegion> regions = new ArrayList<>(this.regions.size());
         for (TemplateRegion region : this.regions) {
-            map.addRegion(
+            regions.add(new TemplateRegion(
                     region.getMarker(),
                     this.globalToLocal(region.getBounds()),
-                    region.getData()
-            );
+                    region.getData().copy()
+            ));
         }
 
-        for (BlockPos pos : this.bounds.iterate()) {
-            BlockPos localPos = this.globalToLocal(pos);
-
-            BlockState state = this.world.getBlockState(pos);
-            map.setBlockState(localPos, state);
+        Function<MapTemplate, MapTemplate> build = previousMap -> build(snapshot, previousMap, localBounds, data, regions);
 
-            BlockEntity entity = this.world.getBlockEntity(pos);
-            if (entity != null) {
-                map.setBlockEntity(localPos, entity);
-            }
+        CompletableFuture<MapTemplate> future;
+        if (incremental) {
+            future = previous.thenApplyAsync(build, Util.getMainWorkerExecutor());
+        } else {
+            future = CompletableFuture.supplyAsync(() -> build.apply(null), Util.getMainWorkerExecutor());
         }
 
-        if (includeEntities) {
-            this.world.getEntitiesByClass(Entity.class, this.bounds.toBox(), entity -> !entity.removed
-                    && (this.containsEntity(entity.getUuid()) || this.hasEntityType(entity.getType())))
-                    .forEach(entity -> map.addEntity(entity, this.globalToLocal(entity.getPos())));
+        this.lastCompiled = future;
+        this.lastCompiledEntities = includeEntities;
+
+        return future;
+    }
+
+    /**
+     * Builds a template from a snapshot of the world. This may be called off-thread.
+     *
+     * @param snapshot the snapshot of the blocks and entities to include
+     * @param previous the previously compiled template to patch, if the snapshot only covers some chunks
+     * @param bounds the bounds of the template, relative to its origin
+     * @param data the arbitrary data to include
+     * @param regions the regions to include, relative to the origin of the template
+     * @return the built template
+     */
+    static MapTemplate build(StagingMapSnapshot snapshot, @Nullable MapTemplate previous, BlockBounds bounds, CompoundTag data, List<TemplateRegion> regions) {
+        MapTemplate map = MapTemplate.createEmpty();
+        map.bounds = bounds;
+        map.setData(data);
+
+        for (TemplateRegion region : regions) {
+            map.addRegion(region);
         }
 
+        snapshot.addTo(map, previous);
+        map.compactChunks();
+        map.deduplicateChunks();
+
         return map;
     }
 
@@ -228,11 +330,6 @@ public final class StagingMapTemplate {
         return pos.subtract(this.bounds.getMin());
     }
 
-    private Vec3d globalToLocal(Vec3d pos) {
-        BlockPos min = this.bounds.getMin();
-        return pos.subtract(min.getX(), min.getY(), min.getZ());
-    }
-
     private BlockBounds globalToLocal(BlockBounds bounds) {
         return new BlockBounds(this.globalToLocal(bounds.getMin()), this.globalToLocal(bounds.getMax()));
     }
@@ -0,0 +1,198 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.fabricmc.fabric.api.util.NbtType;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.PositionTracker;
+import net.minecraft.nbt.TagReader;
+import net.minecraft.nbt.TagReaders;
+import net.minecraft.util.Util;
+import net.minecraft.util.math.ChunkSectionPos;
+import xyz.nucleoid.plasmid.Plasmid;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Reads a map template in the {@link MapTemplateFormat#NBT} format straight from the compressed stream, with the
+ * {@link MapTemplateCodec} detected from the start of the file.
+ * <p>
+ * Rather than building the whole root tag before walking it, the root compound is parsed key by key. Each chunk,
+ * region and block entity is only held as a tag until it has been added to the template. Chunks are decoded in
+ * batches on the worker pool while the rest of the stream is being read.
+ * <p>
+ * Chunks which reference the blocks of another chunk are linked to it once every chunk has been decoded, so that both
+ * share a single container.
+ */
+final class StreamingMapTemplateReader {
+    private static final int DECODE_BATCH_SIZE = 64;
+
+    // depth of the elements of a list stored in the root compound
+    private static final int LIST_ELEMENT_DEPTH = 2;
+
+    private final MapTemplate template;
+    private final DataInput input;
+
+    private final CompoundTag metadata = new CompoundTag();
+
+    private final List<CompletableFuture<DecodedBatch>> chunkBatches = new ArrayList<>();
+    private List<CompoundTag> pendingChunks = new ArrayList<>(DECODE_BATCH_SIZE);
+
+    private final List<CompoundTag> legacyBlockEntities = new ArrayList<>();
+
+    private StreamingMapTemplateReader(MapTemplate template, DataInput input) {
+        this.template = template;
+        this.input = input;
+    }
+
+    static void read(MapTemplate template, InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(MapTemplateCodec.openInput(stream)));
+        new StreamingMapTemplateReader(template, input).read();
+    }
+
+    private void read() throws IOException {
+        if (this.input.readByte() != NbtType.COMPOUND) {
+            throw new IOException("Root tag must be a named compound tag");
+        }
+        this.input.readUTF();
+
+        byte type;
+        while ((type = this.input.readByte()) != NbtType.END) {
+            String key = this.input.readUTF();
+            if (type == NbtType.LIST && this.readRootList(key)) {
+                continue;
+            }
+
+            this.metadata.put(key, TagReaders.of(type).read(this.input, 1, PositionTracker.DEFAULT));
+        }
+
+        this.flushChunks();
+        LongList blockRefs = new LongArrayList();
+        for (CompletableFuture<DecodedBatch> future : this.chunkBatches) {
+            DecodedBatch batch = future.join();
+            this.template.chunks.putAll(batch.chunks);
+            blockRefs.addAll(batch.blockRefs);
+        }
+
+        this.resolveBlockRefs(blockRefs);
+
+        for (CompoundTag blockEntity : this.legacyBlockEntities) {
+            MapTemplateSerializer.loadBlockEntity(this.template, blockEntity);
+        }
+
+        MapTemplateSerializer.loadMetadata(this.template, this.metadata);
+    }
+
+    private boolean readRootList(String key) throws IOException {
+        switch (key) {
+            case "chunks":
+                this.readCompoundList(this::acceptChunk);
+                return true;
+            case "regions":
+                this.readCompoundList(tag -> this.template.addRegion(TemplateRegion.deserialize(tag)));
+                return true;
+            case "block_entities":
+                // older templates list block entities apart from their chunks, which are only added once decoded
+                this.readCompoundList(this.legacyBlockEntities::add);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void readCompoundList(Consumer<CompoundTag> consumer) throws IOException {
+        byte elementType = this.input.readByte();
+        int length = this.input.readInt();
+
+        if (elementType != NbtType.COMPOUND) {
+            TagReader<?> reader = TagReaders.of(elementType);
+            for (int i = 0; i < length; i++) {
+                reader.read(this.input, LIST_ELEMENT_DEPTH, PositionTracker.DEFAULT);
+            }
+            return;
+        }
+
+        for (int i = 0; i < length; i++) {
+            consumer.accept(CompoundTag.READER.read(this.input, LIST_ELEMENT_DEPTH, PositionTracker.DEFAULT));
+        }
+    }
+
+    private void acceptChunk(CompoundTag chunkRoot) {
+        this.pendingChunks.add(chunkRoot);
+        if (this.pendingChunks.size() >= DECODE_BATCH_SIZE) {
+            this.flushChunks();
+        }
+    }
+
+    private void flushChunks() {
+        if (this.pendingChunks.isEmpty()) {
+            return;
+        }
+
+        List<CompoundTag> batch = this.pendingChunks;
+        this.pendingChunks = new ArrayList<>(DECODE_BATCH_SIZE);
+
+        LongAdder decodeNanos = this.template.decodeNanos;
+        this.chunkBatches.add(CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            DecodedBatch decoded = decodeChunks(batch);
+            decodeNanos.add(System.nanoTime() - start);
+            return decoded;
+        }, Util.getMainWorkerExecutor()));
+    }
+
+    private void resolveBlockRefs(LongList blockRefs) {
+        for (int i = 0; i < blockRefs.size(); i += 2) {
+            MapTemplate.Chunk chunk = this.template.chunks.get(blockRefs.getLong(i));
+            MapTemplate.Chunk source = this.template.chunks.get(blockRefs.getLong(i + 1));
+            if (source == null) {
+                Plasmid.LOGGER.warn("Chunk {} references blocks of missing chunk {}", ChunkSectionPos.from(blockRefs.getLong(i)), ChunkSectionPos.from(blockRefs.getLong(i + 1)));
+                continue;
+            }
+
+            chunk.shareBlocksWith(source);
+        }
+    }
+
+    private static DecodedBatch decodeChunks(List<CompoundTag> batch) {
+        DecodedBatch decoded = new DecodedBatch(batch.size());
+        for (CompoundTag chunkRoot : batch) {
+            int[] posArray = chunkRoot.getIntArray("pos");
+            if (posArray.length != 3) {
+                Plasmid.LOGGER.warn("Invalid chunk pos key: {}", posArray);
+                continue;
+            }
+
+            long pos = ChunkSectionPos.asLong(posArray[0], posArray[1], posArray[2]);
+            decoded.chunks.put(pos, MapTemplate.Chunk.deserialize(chunkRoot));
+
+            int[] refArray = chunkRoot.getIntArray(MapTemplate.Chunk.BLOCKS_REF_KEY);
+            if (refArray.length == 3) {
+                decoded.blockRefs.add(pos);
+                decoded.blockRefs.add(ChunkSectionPos.asLong(refArray[0], refArray[1], refArray[2]));
+            }
+        }
+        return decoded;
+    }
+
+    private static final class DecodedBatch {
+        final Long2ObjectMap<MapTemplate.Chunk> chunks;
+        // pairs of (chunk, referenced chunk) positions
+        final LongList blockRefs = new LongArrayList();
+
+        DecodedBatch(int size) {
+            this.chunks = new Long2ObjectOpenHashMap<>(size);
+        }
+    }
+}
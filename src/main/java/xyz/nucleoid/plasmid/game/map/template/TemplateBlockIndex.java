@@ -0,0 +1,67 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongLists;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * An index from blocks to the positions they are found at in a {@link MapTemplate}, so that games looking for marker
+ * blocks do not need to test every position of the template.
+ * <p>
+ * The positions of each block are found the first time they are asked for and kept for as long as the index. Chunks
+ * whose palette does not contain the block are skipped without testing any of their positions.
+ */
+final class TemplateBlockIndex {
+    private final Long2ObjectMap<MapTemplate.Chunk> chunks;
+    private final Map<Block, LongList> positionsByBlock = new ConcurrentHashMap<>();
+
+    TemplateBlockIndex(Long2ObjectMap<MapTemplate.Chunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * @return an unmodifiable list of the positions of every instance of the given block, packed with
+     * {@link BlockPos#asLong()}
+     */
+    LongList get(Block block) {
+        return this.positionsByBlock.computeIfAbsent(block, this::find);
+    }
+
+    private LongList find(Block block) {
+        Predicate<BlockState> predicate = state -> state.isOf(block);
+
+        LongArrayList positions = new LongArrayList();
+        BlockPos.Mutable pos = new BlockPos.Mutable();
+
+        for (Long2ObjectMap.Entry<MapTemplate.Chunk> entry : Long2ObjectMaps.fastIterable(this.chunks)) {
+            MapTemplate.Chunk chunk = entry.getValue();
+            if (!chunk.hasAny(predicate)) {
+                continue;
+            }
+
+            long chunkPos = entry.getLongKey();
+            int minX = ChunkSectionPos.unpackX(chunkPos) << 4;
+            int minY = ChunkSectionPos.unpackY(chunkPos) << 4;
+            int minZ = ChunkSectionPos.unpackZ(chunkPos) << 4;
+
+            chunk.forEachMatching(predicate, minX, minY, minZ, pos, (p, state) -> positions.add(p.asLong()));
+        }
+
+        if (positions.isEmpty()) {
+            return LongLists.EMPTY_LIST;
+        }
+
+        positions.trim();
+        return LongLists.unmodifiable(positions);
+    }
+}
@@ -2,7 +2,6 @@ package xyz.nucleoid.plasmid.game.map.template;
 
 import net.fabricmc.fabric.api.util.NbtType;
 import net.minecraft.block.BlockState;
-import net.minecraft.block.Blocks;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.DoubleTag;
 import net.minecraft.nbt.ListTag;
@@ -10,36 +9,58 @@ import net.minecraft.server.MinecraftServer;
 import net.minecraft.structure.StructureManager;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.registry.DynamicRegistryManager;
 import net.minecraft.world.*;
 import net.minecraft.world.biome.source.BiomeAccess;
+import net.minecraft.world.biome.source.BiomeSource;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkNibbleArray;
 import net.minecraft.world.chunk.ChunkSection;
 import net.minecraft.world.chunk.ProtoChunk;
+import net.minecraft.world.chunk.light.LightingProvider;
 import net.minecraft.world.gen.GenerationStep;
 import net.minecraft.world.gen.StructureAccessor;
 import net.minecraft.world.gen.chunk.StructuresConfig;
-import net.minecraft.world.gen.chunk.VerticalBlockSample;
 import xyz.nucleoid.plasmid.game.world.generator.GameChunkGenerator;
 import xyz.nucleoid.plasmid.game.world.view.VoidBlockView;
+import org.jetbrains.annotations.Nullable;
 import xyz.nucleoid.plasmid.util.BlockBounds;
 
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Optional;
-import java.util.function.Predicate;
 
+/**
+ * Generates a {@link MapTemplateView} into the world at the given origin.
+ * <p>
+ * When generating a {@link MapTemplate} itself, its chunks and heightmaps are copied directly where possible. Any
+ * other view, such as a transformed template, is generated by querying it block by block.
+ */
 public class TemplateChunkGenerator extends GameChunkGenerator {
+    private static final EnumSet<Heightmap.Type> GENERATION_HEIGHTMAPS = EnumSet.of(Heightmap.Type.OCEAN_FLOOR_WG, Heightmap.Type.WORLD_SURFACE_WG);
+
+    private final MapTemplateView view;
+    // the view as a template, if its storage can be read directly
+    @Nullable
     private final MapTemplate template;
     private final BlockBounds worldBounds;
     private final BlockPos origin;
+    private final boolean sectionAligned;
+
+    public TemplateChunkGenerator(MinecraftServer server, MapTemplateView view, BlockPos origin) {
+        this(createBiomeSource(server, view.getBiome()), view, origin);
+    }
 
-    public TemplateChunkGenerator(MinecraftServer server, MapTemplate template, BlockPos origin) {
-        super(createBiomeSource(server, template.getBiome()), new StructuresConfig(Optional.empty(), Collections.emptyMap()));
+    TemplateChunkGenerator(BiomeSource biomes, MapTemplateView view, BlockPos origin) {
+        super(biomes, new StructuresConfig(Optional.empty(), Collections.emptyMap()));
 
-        this.template = template;
-        this.worldBounds = template.getBounds().offset(origin);
+        this.view = view;
+        this.template = view instanceof MapTemplate ? (MapTemplate) view : null;
+        this.worldBounds = view.getBounds().offset(origin);
         this.origin = origin;
+        this.sectionAligned = this.template != null && (origin.getX() & 15) == 0 && (origin.getY() & 15) == 0 && (origin.getZ() & 15) == 0;
     }
 
     @Override
@@ -72,17 +93,102 @@ public class TemplateChunkGenerator extends GameChunkGenerator {
         int minSectionY = this.worldBounds.getMin().getY() >> 4;
         int maxSectionY = this.worldBounds.getMax().getY() >> 4;
 
+        // baked light can only be used when template chunks line up with world sections
+        TemplateLighting lighting = this.sectionAligned ? this.template.lighting : null;
+        if (lighting != null) {
+            world.getLightingProvider().setRetainData(chunkPos, true);
+        }
+
         for (int sectionY = maxSectionY; sectionY >= minSectionY; sectionY--) {
             ChunkSection section = protoChunk.getSection(sectionY);
             section.lock();
 
             try {
                 int minWorldY = sectionY << 4;
-                this.addSection(minWorldX, minWorldY, minWorldZ, mutablePos, protoChunk, section);
+                if (this.sectionAligned) {
+                    boolean bakedLight = lighting != null && this.enqueueBakedLight(world.getLightingProvider(), lighting, chunkPos, sectionY);
+                    this.copySection(minWorldX, minWorldY, minWorldZ, protoChunk, section, !bakedLight);
+                } else {
+                    this.addSection(minWorldX, minWorldY, minWorldZ, mutablePos, protoChunk, section);
+                }
             } finally {
                 section.unlock();
             }
         }
+
+        if (this.sectionAligned) {
+            Heightmap.populateHeightmaps(protoChunk, GENERATION_HEIGHTMAPS);
+        }
+    }
+
+    /**
+     * Hands the light baked into the template chunk at the given world section to the lighting engine, as is done
+     * for chunks loaded from disk.
+     * <p>
+     * This does not skip the light stage of the chunk: the lighting engine still enables the column and updates the
+     * status of each non-empty section, and sky light is still checked against them. Only the propagation of block
+     * light from the light sources of baked sections is avoided, since those sources are never queued.
+     *
+     * @return whether block light was baked for this section, so its light sources do not need to be added
+     */
+    private boolean enqueueBakedLight(LightingProvider lightingProvider, TemplateLighting lighting, ChunkPos chunkPos, int sectionY) {
+        long templateChunk = ChunkSectionPos.asLong(
+                (chunkPos.getStartX() - this.origin.getX()) >> 4,
+                ((sectionY << 4) - this.origin.getY()) >> 4,
+                (chunkPos.getStartZ() - this.origin.getZ()) >> 4
+        );
+
+        ChunkNibbleArray blockLight = lighting.get(LightType.BLOCK, templateChunk);
+        ChunkNibbleArray skyLight = lighting.get(LightType.SKY, templateChunk);
+
+        // the lighting engine takes ownership of the arrays it is given, so the template's must be copied
+        ChunkSectionPos sectionPos = ChunkSectionPos.from(chunkPos, sectionY);
+        if (blockLight != null) {
+            lightingProvider.enqueueSectionData(LightType.BLOCK, sectionPos, blockLight.copy(), true);
+        }
+        if (skyLight != null) {
+            lightingProvider.enqueueSectionData(LightType.SKY, sectionPos, skyLight.copy(), true);
+        }
+
+        return blockLight != null;
+    }
+
+    /**
+     * Copies a template chunk that lines up exactly with the given world section by copying its palette and packed
+     * block data directly. Heightmaps are rebuilt by the caller once all sections have been copied.
+     */
+    private void copySection(int minWorldX, int minWorldY, int minWorldZ, ProtoChunk chunk, ChunkSection section, boolean addLightSources) {
+        int offsetX = minWorldX - this.origin.getX();
+        int offsetY = minWorldY - this.origin.getY();
+        int offsetZ = minWorldZ - this.origin.getZ();
+
+        MapTemplate.Chunk templateChunk = this.template.chunks.get(ChunkSectionPos.asLong(offsetX >> 4, offsetY >> 4, offsetZ >> 4));
+        if (templateChunk == null) {
+            return;
+        }
+
+        templateChunk.copyTo(section.getContainer());
+        section.calculateCounts();
+
+        // block entities are stored with their chunk, so only the positions which have one are visited
+        templateChunk.forEachBlockEntity((x, y, z, tag) -> {
+            chunk.addPendingBlockEntityTag(MapTemplate.createWorldBlockEntityTag(tag, minWorldX + x, minWorldY + y, minWorldZ + z));
+        });
+
+        if (!addLightSources || !templateChunk.hasAny(state -> state.getLuminance() != 0)) {
+            return;
+        }
+
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    BlockState state = templateChunk.get(x, y, z);
+                    if (state.getLuminance() != 0) {
+                        chunk.addLightSource(new BlockPos(minWorldX + x, y + minWorldY, minWorldZ + z));
+                    }
+                }
+            }
+        }
     }
 
     private void addSection(int minWorldX, int minWorldY, int minWorldZ, BlockPos.Mutable templatePos, ProtoChunk chunk, ChunkSection section) {
@@ -98,7 +204,7 @@ public class TemplateChunkGenerator extends GameChunkGenerator {
                 for (int x = 0; x < 16; x++) {
                     templatePos.set(x + offsetX, y + offsetY, z + offsetZ);
 
-                    BlockState state = this.template.getBlockState(templatePos);
+                    BlockState state = this.view.getBlockState(templatePos);
                     if (!state.isAir()) {
                         section.setBlockState(x, y, z, state);
 
@@ -110,12 +216,11 @@ public class TemplateChunkGenerator extends GameChunkGenerator {
                             chunk.addLightSource(new BlockPos(minWorldX + x, worldY, minWorldZ + z));
                         }
 
-                        CompoundTag blockEntityTag = this.template.getBlockEntityTag(templatePos);
-                        if (blockEntityTag != null) {
-                            blockEntityTag.putInt("x", minWorldX + x);
-                            blockEntityTag.putInt("y", worldY);
-                            blockEntityTag.putInt("z", minWorldZ + z);
-                            chunk.addPendingBlockEntityTag(blockEntityTag);
+                        if (state.getBlock().hasBlockEntity()) {
+                            CompoundTag blockEntityTag = this.createBlockEntityTag(templatePos, minWorldX + x, worldY, minWorldZ + z);
+                            if (blockEntityTag != null) {
+                                chunk.addPendingBlockEntityTag(blockEntityTag);
+                            }
                         }
                     }
                 }
@@ -123,6 +228,24 @@ public class TemplateChunkGenerator extends GameChunkGenerator {
         }
     }
 
+    @Nullable
+    private CompoundTag createBlockEntityTag(BlockPos templatePos, int worldX, int worldY, int worldZ) {
+        if (this.template != null) {
+            return this.template.createBlockEntityTag(templatePos, worldX, worldY, worldZ);
+        }
+
+        CompoundTag tag = this.view.getBlockEntityTag(templatePos);
+        if (tag == null) {
+            return null;
+        }
+
+        CompoundTag worldTag = tag.copy();
+        worldTag.putInt("x", worldX);
+        worldTag.putInt("y", worldY);
+        worldTag.putInt("z", worldZ);
+        return worldTag;
+    }
+
     @Override
     public void populateEntities(ChunkRegion region) {
         int chunkX = region.getCenterChunkX();
@@ -140,6 +263,11 @@ public class TemplateChunkGenerator extends GameChunkGenerator {
         int minWorldX = chunkPos.getStartX();
         int minWorldZ = chunkPos.getStartZ();
 
+        if (this.template != null) {
+            this.addTemplateEntities(protoChunk, chunkPos);
+            return;
+        }
+
         int minSectionY = this.worldBounds.getMin().getY() >> 4;
         int maxSectionY = this.worldBounds.getMax().getY() >> 4;
 
@@ -150,22 +278,71 @@ public class TemplateChunkGenerator extends GameChunkGenerator {
             int offsetY = minWorldY - this.origin.getY();
             int offsetZ = minWorldZ - this.origin.getZ();
 
-            this.template.getEntitiesInChunk(offsetX >> 4, offsetY >> 4, offsetZ >> 4).forEach(entityTag -> {
-                ListTag posTag = entityTag.getList("Pos", NbtType.DOUBLE);
-                posTag.set(0, DoubleTag.of(posTag.getDouble(0) + minWorldX));
-                posTag.set(1, DoubleTag.of(posTag.getDouble(1) + minWorldY));
-                posTag.set(2, DoubleTag.of(posTag.getDouble(2) + minWorldZ));
+            this.view.getEntitiesInChunk(offsetX >> 4, offsetY >> 4, offsetZ >> 4)
+                    .forEach(entityTag -> protoChunk.addEntity(this.createWorldEntityTag(entityTag, minWorldX, minWorldY, minWorldZ)));
+        }
+    }
 
-                // For AbstractDecorationEntity.
-                this.fixPos(entityTag, "TileX", minWorldX);
-                this.fixPos(entityTag, "TileY", minWorldY);
-                this.fixPos(entityTag, "TileZ", minWorldZ);
+    /**
+     * Adds the entities of the template which fall within the given world chunk. Columns of template chunks without
+     * entities are skipped entirely, and each entity tag is built from its record without touching the stored tags.
+     */
+    private void addTemplateEntities(ProtoChunk chunk, ChunkPos chunkPos) {
+        TemplateEntityIndex entities = this.template.getEntityIndex();
+
+        int originX = this.origin.getX();
+        int originY = this.origin.getY();
+        int originZ = this.origin.getZ();
+
+        // when the origin is not aligned, a world chunk overlaps up to 2x2 columns of template chunks
+        int minTemplateChunkX = (chunkPos.getStartX() - originX) >> 4;
+        int maxTemplateChunkX = (chunkPos.getEndX() - originX) >> 4;
+        int minTemplateChunkZ = (chunkPos.getStartZ() - originZ) >> 4;
+        int maxTemplateChunkZ = (chunkPos.getEndZ() - originZ) >> 4;
+
+        BlockBounds bounds = this.template.getBounds();
+        int minTemplateChunkY = bounds.getMin().getY() >> 4;
+        int maxTemplateChunkY = bounds.getMax().getY() >> 4;
+
+        for (int templateChunkZ = minTemplateChunkZ; templateChunkZ <= maxTemplateChunkZ; templateChunkZ++) {
+            for (int templateChunkX = minTemplateChunkX; templateChunkX <= maxTemplateChunkX; templateChunkX++) {
+                if (!entities.hasAnyInColumn(templateChunkX, templateChunkZ)) {
+                    continue;
+                }
 
-                protoChunk.addEntity(entityTag);
-            });
+                for (int templateChunkY = minTemplateChunkY; templateChunkY <= maxTemplateChunkY; templateChunkY++) {
+                    for (TemplateEntityIndex.Record entity : entities.get(templateChunkX, templateChunkY, templateChunkZ)) {
+                        int worldChunkX = MathHelper.floor(entity.x + originX) >> 4;
+                        int worldChunkZ = MathHelper.floor(entity.z + originZ) >> 4;
+                        if (worldChunkX == chunkPos.x && worldChunkZ == chunkPos.z) {
+                            chunk.addEntity(entity.createWorldTag(originX, originY, originZ));
+                        }
+                    }
+                }
+            }
         }
     }
 
+    /**
+     * Creates a copy of the given template entity tag, moved into the world section with the given minimum position.
+     * The template tag itself is never modified, so that the template can be shared between generators.
+     */
+    private CompoundTag createWorldEntityTag(CompoundTag templateTag, int minWorldX, int minWorldY, int minWorldZ) {
+        CompoundTag entityTag = templateTag.copy();
+
+        ListTag posTag = entityTag.getList("Pos", NbtType.DOUBLE);
+        posTag.set(0, DoubleTag.of(posTag.getDouble(0) + minWorldX));
+        posTag.set(1, DoubleTag.of(posTag.getDouble(1) + minWorldY));
+        posTag.set(2, DoubleTag.of(posTag.getDouble(2) + minWorldZ));
+
+        // For AbstractDecorationEntity.
+        this.fixPos(entityTag, "TileX", minWorldX);
+        this.fixPos(entityTag, "TileY", minWorldY);
+        this.fixPos(entityTag, "TileZ", minWorldZ);
+
+        return entityTag;
+    }
+
     private void fixPos(CompoundTag tag, String key, int offset) {
         if (tag.contains(key, NbtType.INT)) {
             tag.putInt(key, tag.getInt(key) + offset);
@@ -175,19 +352,21 @@ public class TemplateChunkGenerator extends GameChunkGenerator {
     @Override
     public int getHeight(int x, int z, Heightmap.Type heightmapType) {
         if (this.worldBounds.contains(x, z)) {
-            Predicate<BlockState> predicate = heightmapType.getBlockPredicate();
-            BlockPos.Mutable mutablePos = new BlockPos.Mutable(x, 0, z);
+            int templateX = x - this.origin.getX();
+            int templateZ = z - this.origin.getZ();
 
-            int minY = this.worldBounds.getMin().getY();
-            int maxY = this.worldBounds.getMax().getY();
+            if (this.template == null) {
+                if (!this.view.isColumnEmpty(templateX, templateZ, heightmapType)) {
+                    return this.view.getTopY(templateX, templateZ, heightmapType) + this.origin.getY();
+                }
+                return 0;
+            }
 
-            for (int y = maxY; y >= minY; y--) {
-                mutablePos.setY(y);
+            TemplateHeightmap heightmap = this.template.getHeightmap(heightmapType);
 
-                BlockState state = this.template.getBlockState(mutablePos);
-                if (predicate.test(state)) {
-                    return y;
-                }
+            int height = heightmap.get(templateX, templateZ);
+            if (height > 0) {
+                return height - 1 + this.origin.getY();
             }
         }
 
@@ -197,20 +376,9 @@ public class TemplateChunkGenerator extends GameChunkGenerator {
     @Override
     public BlockView getColumnSample(int x, int z) {
         if (this.worldBounds.contains(x, z)) {
-            BlockPos.Mutable mutablePos = new BlockPos.Mutable(x, 0, z);
-
             int minY = this.worldBounds.getMin().getY();
             int maxY = this.worldBounds.getMax().getY();
-
-            BlockState[] column = new BlockState[maxY + 1];
-            Arrays.fill(column, minY, 0, Blocks.AIR.getDefaultState());
-
-            for (int y = maxY; y >= minY; y--) {
-                mutablePos.setY(y);
-                column[y] = this.template.getBlockState(mutablePos);
-            }
-
-            return new VerticalBlockSample(column);
+            return new TemplateColumnSample(this.view, this.template, this.origin, minY, maxY, x, z);
         }
 
         return VoidBlockView.INSTANCE;
@@ -0,0 +1,264 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.fabricmc.fabric.api.util.NbtType;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.LightType;
+import net.minecraft.world.chunk.ChunkNibbleArray;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.chunk.ProtoChunk;
+import net.minecraft.world.chunk.UpgradeData;
+import org.jetbrains.annotations.Nullable;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+import xyz.nucleoid.plasmid.world.bubble.BubbleChunkSnapshots;
+import xyz.nucleoid.plasmid.world.bubble.BubbleWorldConfig;
+
+/**
+ * Complete chunks compiled from a {@link MapTemplate}, in the same format as chunks saved by the world, so that a
+ * bubble world can load them directly rather than generating them with a {@link TemplateChunkGenerator}.
+ * <p>
+ * Snapshots hold every chunk column covered by the template placed at the origin. Biomes are left out so that they
+ * are taken from the world's biome source when loaded, and light is only included if it was baked into the template.
+ * Snapshots are compiled with {@code /map compile <map> snapshots} and loaded through
+ * {@link MapTemplateSerializer#loadChunkSnapshots(net.minecraft.util.Identifier)}:
+ *
+ * <pre>{@code
+ * BubbleWorldConfig worldConfig = new BubbleWorldConfig()
+ *         .setGenerator(new TemplateChunkGenerator(server, template, BlockPos.ORIGIN))
+ *         .setChunkSnapshots(snapshots.at(BlockPos.ORIGIN));
+ * }</pre>
+ *
+ * @see BubbleWorldConfig#setChunkSnapshots(BubbleChunkSnapshots)
+ */
+public final class TemplateChunkSnapshots {
+    private final Long2ObjectMap<CompoundTag> chunks;
+
+    private TemplateChunkSnapshots(Long2ObjectMap<CompoundTag> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Compiles the chunks covered by the given template, as they would be generated with the template at the origin.
+     *
+     * @param template the template to compile
+     * @return the compiled snapshots
+     */
+    public static TemplateChunkSnapshots compile(MapTemplate template) {
+        LongSet columns = new LongOpenHashSet();
+        for (long chunkPos : template.chunks.keySet()) {
+            columns.add(ChunkPos.toLong(ChunkSectionPos.unpackX(chunkPos), ChunkSectionPos.unpackZ(chunkPos)));
+        }
+
+        Long2ObjectMap<CompoundTag> chunks = new Long2ObjectOpenHashMap<>(columns.size());
+        for (long column : columns) {
+            ChunkPos pos = new ChunkPos(column);
+            chunks.put(column, compileChunk(template, pos));
+        }
+
+        return new TemplateChunkSnapshots(chunks);
+    }
+
+    private static CompoundTag compileChunk(MapTemplate template, ChunkPos pos) {
+        BlockBounds bounds = template.getBounds();
+        int minSectionY = Math.max(bounds.getMin().getY() >> 4, 0);
+        int maxSectionY = Math.min(bounds.getMax().getY() >> 4, 15);
+
+        TemplateLighting lighting = template.lighting;
+
+        ProtoChunk chunk = new ProtoChunk(pos, UpgradeData.NO_UPGRADE_DATA);
+        ListTag sectionsTag = new ListTag();
+        ListTag blockEntitiesTag = new ListTag();
+
+        for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+            long sectionPos = ChunkSectionPos.asLong(pos.x, sectionY, pos.z);
+            MapTemplate.Chunk templateChunk = template.chunks.get(sectionPos);
+
+            CompoundTag sectionTag = new CompoundTag();
+            sectionTag.putByte("Y", (byte) sectionY);
+
+            if (templateChunk != null) {
+                ChunkSection section = chunk.getSection(sectionY);
+                templateChunk.copyTo(section.getContainer());
+                section.calculateCounts();
+                if (!section.isEmpty()) {
+                    section.getContainer().write(sectionTag, "Palette", "BlockStates");
+                }
+
+                int minX = pos.getStartX();
+                int minY = sectionY << 4;
+                int minZ = pos.getStartZ();
+                templateChunk.forEachBlockEntity((x, y, z, tag) -> {
+                    CompoundTag worldTag = MapTemplate.createWorldBlockEntityTag(tag, minX + x, minY + y, minZ + z);
+                    // placeholder tags can't be read as block entities, so are left for the chunk to create from its block
+                    if ("DUMMY".equals(worldTag.getString("id"))) {
+                        worldTag.putBoolean("keepPacked", true);
+                    }
+                    blockEntitiesTag.add(worldTag);
+                });
+            }
+
+            if (lighting != null) {
+                writeLight(sectionTag, "BlockLight", lighting.get(LightType.BLOCK, sectionPos));
+                writeLight(sectionTag, "SkyLight", lighting.get(LightType.SKY, sectionPos));
+            }
+
+            if (sectionTag.getSize() > 1) {
+                sectionsTag.add(sectionTag);
+            }
+        }
+
+        Heightmap.populateHeightmaps(chunk, ChunkStatus.FULL.getHeightmapTypes());
+
+        CompoundTag heightmapsTag = new CompoundTag();
+        for (Heightmap.Type type : ChunkStatus.FULL.getHeightmapTypes()) {
+            heightmapsTag.putLongArray(type.getName(), chunk.getHeightmap(type).asLongArray());
+        }
+
+        CompoundTag levelTag = new CompoundTag();
+        levelTag.putInt("xPos", pos.x);
+        levelTag.putInt("zPos", pos.z);
+        levelTag.putLong("LastUpdate", 0);
+        levelTag.putLong("InhabitedTime", 0);
+        levelTag.putString("Status", ChunkStatus.FULL.getId());
+        levelTag.putBoolean("isLightOn", lighting != null);
+        levelTag.put("Sections", sectionsTag);
+        levelTag.put("Heightmaps", heightmapsTag);
+        levelTag.put("TileEntities", blockEntitiesTag);
+        levelTag.put("Entities", compileEntities(template, pos, minSectionY, maxSectionY));
+        levelTag.put("Structures", createEmptyStructures());
+
+        CompoundTag root = new CompoundTag();
+        root.putInt("DataVersion", SharedConstants.getGameVersion().getWorldVersion());
+        root.put("Level", levelTag);
+        return root;
+    }
+
+    private static void writeLight(CompoundTag sectionTag, String key, @Nullable ChunkNibbleArray light) {
+        if (light != null && !light.isUninitialized()) {
+            sectionTag.putByteArray(key, light.asByteArray().clone());
+        }
+    }
+
+    private static ListTag compileEntities(MapTemplate template, ChunkPos pos, int minSectionY, int maxSectionY) {
+        ListTag entitiesTag = new ListTag();
+
+        TemplateEntityIndex entities = template.getEntityIndex();
+        if (!entities.hasAnyInColumn(pos.x, pos.z)) {
+            return entitiesTag;
+        }
+
+        for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+            for (TemplateEntityIndex.Record entity : entities.get(pos.x, sectionY, pos.z)) {
+                entitiesTag.add(entity.createWorldTag(0, 0, 0));
+            }
+        }
+
+        return entitiesTag;
+    }
+
+    private static CompoundTag createEmptyStructures() {
+        CompoundTag structuresTag = new CompoundTag();
+        structuresTag.put("Starts", new CompoundTag());
+        structuresTag.put("References", new CompoundTag());
+        return structuresTag;
+    }
+
+    /**
+     * Creates a source of these snapshots for a world with the template placed at the given origin. Chunks are moved
+     * by whole columns, so the origin must be aligned to a chunk and have a Y-coordinate of 0.
+     *
+     * @param origin the origin the template is placed at, as given to the {@link TemplateChunkGenerator}
+     * @return the snapshot source to give to the world config
+     * @throws IllegalArgumentException if the origin is not aligned to a chunk
+     */
+    public BubbleChunkSnapshots at(BlockPos origin) {
+        if ((origin.getX() & 15) != 0 || origin.getY() != 0 || (origin.getZ() & 15) != 0) {
+            throw new IllegalArgumentException("Chunk snapshots can only be placed at a chunk-aligned origin with Y=0, but got " + origin);
+        }
+
+        int offsetChunkX = origin.getX() >> 4;
+        int offsetChunkZ = origin.getZ() >> 4;
+
+        return pos -> {
+            CompoundTag snapshot = this.chunks.get(ChunkPos.toLong(pos.x - offsetChunkX, pos.z - offsetChunkZ));
+            if (snapshot == null) {
+                return null;
+            }
+            return moveSnapshot(snapshot.copy(), pos, origin.getX(), origin.getZ());
+        };
+    }
+
+    private static CompoundTag moveSnapshot(CompoundTag root, ChunkPos pos, int offsetX, int offsetZ) {
+        CompoundTag levelTag = root.getCompound("Level");
+        levelTag.putInt("xPos", pos.x);
+        levelTag.putInt("zPos", pos.z);
+
+        if (offsetX == 0 && offsetZ == 0) {
+            return root;
+        }
+
+        ListTag blockEntitiesTag = levelTag.getList("TileEntities", NbtType.COMPOUND);
+        for (int i = 0; i < blockEntitiesTag.size(); i++) {
+            CompoundTag blockEntityTag = blockEntitiesTag.getCompound(i);
+            blockEntityTag.putInt("x", blockEntityTag.getInt("x") + offsetX);
+            blockEntityTag.putInt("z", blockEntityTag.getInt("z") + offsetZ);
+        }
+
+        ListTag entitiesTag = levelTag.getList("Entities", NbtType.COMPOUND);
+        for (int i = 0; i < entitiesTag.size(); i++) {
+            CompoundTag entityTag = entitiesTag.getCompound(i);
+
+            ListTag posTag = entityTag.getList("Pos", NbtType.DOUBLE);
+            posTag.set(0, DoubleTag.of(posTag.getDouble(0) + offsetX));
+            posTag.set(2, DoubleTag.of(posTag.getDouble(2) + offsetZ));
+
+            // For AbstractDecorationEntity.
+            if (entityTag.contains("TileX", NbtType.INT) && entityTag.contains("TileZ", NbtType.INT)) {
+                entityTag.putInt("TileX", entityTag.getInt("TileX") + offsetX);
+                entityTag.putInt("TileZ", entityTag.getInt("TileZ") + offsetZ);
+            }
+        }
+
+        return root;
+    }
+
+    /**
+     * @return the number of chunk columns held by these snapshots
+     */
+    public int size() {
+        return this.chunks.size();
+    }
+
+    CompoundTag serialize() {
+        ListTag chunksTag = new ListTag();
+        chunksTag.addAll(this.chunks.values());
+
+        CompoundTag root = new CompoundTag();
+        root.put("chunks", chunksTag);
+        return root;
+    }
+
+    static TemplateChunkSnapshots deserialize(CompoundTag root) {
+        ListTag chunksTag = root.getList("chunks", NbtType.COMPOUND);
+
+        Long2ObjectMap<CompoundTag> chunks = new Long2ObjectOpenHashMap<>(chunksTag.size());
+        for (int i = 0; i < chunksTag.size(); i++) {
+            CompoundTag chunkTag = chunksTag.getCompound(i);
+            CompoundTag levelTag = chunkTag.getCompound("Level");
+            chunks.put(ChunkPos.toLong(levelTag.getInt("xPos"), levelTag.getInt("zPos")), chunkTag);
+        }
+
+        return new TemplateChunkSnapshots(chunks);
+    }
+}
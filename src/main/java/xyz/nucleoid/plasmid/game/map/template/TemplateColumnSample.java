@@ -0,0 +1,89 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.fluid.FluidState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.BlockView;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A column of a map template, as returned by {@link TemplateChunkGenerator#getColumnSample(int, int)}.
+ * <p>
+ * Like a {@link net.minecraft.world.gen.chunk.VerticalBlockSample}, only the y-coordinate of a queried position is
+ * used. Blocks are read from the template on demand rather than copied into an array: when the template can be read
+ * directly, the chunk of the last query is kept so that walking along the column only looks up each chunk once.
+ * <p>
+ * Callers may hold several samples at once, so a new sample is created for every column. A sample must only be used
+ * by one thread at a time.
+ */
+final class TemplateColumnSample implements BlockView {
+    private static final BlockState AIR = Blocks.AIR.getDefaultState();
+
+    private final MapTemplateView view;
+    @Nullable
+    private final MapTemplate template;
+    private final BlockPos origin;
+    private final int minY;
+    private final int maxY;
+    private final int templateX;
+    private final int templateZ;
+
+    private final BlockPos.Mutable templatePos = new BlockPos.Mutable();
+
+    private long cachedChunkPos;
+    @Nullable
+    private MapTemplate.Chunk cachedChunk;
+
+    TemplateColumnSample(MapTemplateView view, @Nullable MapTemplate template, BlockPos origin, int minY, int maxY, int x, int z) {
+        this.view = view;
+        this.template = template;
+        this.origin = origin;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.templateX = x - origin.getX();
+        this.templateZ = z - origin.getZ();
+    }
+
+    @Nullable
+    @Override
+    public BlockEntity getBlockEntity(BlockPos pos) {
+        return null;
+    }
+
+    @Override
+    public BlockState getBlockState(BlockPos pos) {
+        int y = pos.getY();
+        if (y < this.minY || y > this.maxY) {
+            return AIR;
+        }
+
+        int templateY = y - this.origin.getY();
+
+        MapTemplate template = this.template;
+        if (template == null) {
+            return this.view.getBlockState(this.templatePos.set(this.templateX, templateY, this.templateZ));
+        }
+
+        long chunkPos = ChunkSectionPos.asLong(this.templateX >> 4, templateY >> 4, this.templateZ >> 4);
+
+        MapTemplate.Chunk chunk = this.cachedChunk;
+        if (chunk == null || this.cachedChunkPos != chunkPos) {
+            chunk = template.chunks.get(chunkPos);
+            if (chunk == null) {
+                return AIR;
+            }
+            this.cachedChunk = chunk;
+            this.cachedChunkPos = chunkPos;
+        }
+
+        return chunk.get(this.templateX & 15, templateY & 15, this.templateZ & 15);
+    }
+
+    @Override
+    public FluidState getFluidState(BlockPos pos) {
+        return this.getBlockState(pos).getFluidState();
+    }
+}
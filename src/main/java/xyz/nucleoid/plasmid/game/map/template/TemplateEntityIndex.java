@@ -0,0 +1,147 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.fabricmc.fabric.api.util.NbtType;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+import java.util.List;
+
+/**
+ * An immutable index over the entities of a {@link MapTemplate}, used to place them into the world while generating.
+ * <p>
+ * Each entity is held as a record of its position relative to the template and a payload tag with every positional
+ * field removed, so that world-space tags can be built without reading or rewriting the stored position fields.
+ * <p>
+ * Alongside the records, every column of template chunks holds a mask with a bit set for each chunk Y-coordinate
+ * (modulo 64) that may contain entities. This allows chunks without entities to be skipped without a map lookup.
+ */
+final class TemplateEntityIndex {
+    private static final Record[] NO_RECORDS = new Record[0];
+
+    private final Long2ObjectMap<Record[]> records = new Long2ObjectOpenHashMap<>();
+    private final Long2LongMap columnMasks = new Long2LongOpenHashMap();
+
+    TemplateEntityIndex(Long2ObjectMap<MapTemplate.Chunk> chunks) {
+        for (Long2ObjectMap.Entry<MapTemplate.Chunk> entry : Long2ObjectMaps.fastIterable(chunks)) {
+            List<CompoundTag> entities = entry.getValue().getEntities();
+            if (entities.isEmpty()) {
+                continue;
+            }
+
+            long chunkPos = entry.getLongKey();
+            int chunkX = ChunkSectionPos.unpackX(chunkPos);
+            int chunkY = ChunkSectionPos.unpackY(chunkPos);
+            int chunkZ = ChunkSectionPos.unpackZ(chunkPos);
+
+            Record[] records = new Record[entities.size()];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = Record.of(entities.get(i), chunkX << 4, chunkY << 4, chunkZ << 4);
+            }
+            this.records.put(chunkPos, records);
+
+            long column = ChunkPos.toLong(chunkX, chunkZ);
+            this.columnMasks.put(column, this.columnMasks.get(column) | 1L << (chunkY & 63));
+        }
+    }
+
+    /**
+     * @return the entities in the given template chunk, which must not be modified
+     */
+    Record[] get(int chunkX, int chunkY, int chunkZ) {
+        long mask = this.columnMasks.get(ChunkPos.toLong(chunkX, chunkZ));
+        if ((mask & 1L << (chunkY & 63)) == 0) {
+            return NO_RECORDS;
+        }
+
+        Record[] records = this.records.get(ChunkSectionPos.asLong(chunkX, chunkY, chunkZ));
+        return records != null ? records : NO_RECORDS;
+    }
+
+    /**
+     * @return whether any chunk in the given column of template chunks may contain entities
+     */
+    boolean hasAnyInColumn(int chunkX, int chunkZ) {
+        return this.columnMasks.get(ChunkPos.toLong(chunkX, chunkZ)) != 0;
+    }
+
+    static final class Record {
+        final double x;
+        final double y;
+        final double z;
+
+        // the attachment position of decoration entities, such as item frames
+        final boolean hasTile;
+        final int tileX;
+        final int tileY;
+        final int tileZ;
+
+        private final CompoundTag payload;
+
+        private Record(double x, double y, double z, boolean hasTile, int tileX, int tileY, int tileZ, CompoundTag payload) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.hasTile = hasTile;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.tileZ = tileZ;
+            this.payload = payload;
+        }
+
+        static Record of(CompoundTag tag, int minX, int minY, int minZ) {
+            ListTag posTag = tag.getList("Pos", NbtType.DOUBLE);
+            double x = posTag.getDouble(0) + minX;
+            double y = posTag.getDouble(1) + minY;
+            double z = posTag.getDouble(2) + minZ;
+
+            CompoundTag payload = tag.copy();
+            payload.remove("Pos");
+
+            boolean hasTile = tag.contains("TileX", NbtType.INT) && tag.contains("TileY", NbtType.INT) && tag.contains("TileZ", NbtType.INT);
+            int tileX = 0;
+            int tileY = 0;
+            int tileZ = 0;
+            if (hasTile) {
+                tileX = tag.getInt("TileX") + minX;
+                tileY = tag.getInt("TileY") + minY;
+                tileZ = tag.getInt("TileZ") + minZ;
+                payload.remove("TileX");
+                payload.remove("TileY");
+                payload.remove("TileZ");
+            }
+
+            return new Record(x, y, z, hasTile, tileX, tileY, tileZ, payload);
+        }
+
+        /**
+         * Creates a new tag for this entity, moved by the given offset from template space into world space.
+         *
+         * @return the world-space tag, which the caller owns
+         */
+        CompoundTag createWorldTag(int offsetX, int offsetY, int offsetZ) {
+            CompoundTag tag = this.payload.copy();
+
+            ListTag posTag = new ListTag();
+            posTag.add(DoubleTag.of(this.x + offsetX));
+            posTag.add(DoubleTag.of(this.y + offsetY));
+            posTag.add(DoubleTag.of(this.z + offsetZ));
+            tag.put("Pos", posTag);
+
+            if (this.hasTile) {
+                tag.putInt("TileX", this.tileX + offsetX);
+                tag.putInt("TileY", this.tileY + offsetY);
+                tag.putInt("TileZ", this.tileZ + offsetZ);
+            }
+
+            return tag;
+        }
+    }
+}
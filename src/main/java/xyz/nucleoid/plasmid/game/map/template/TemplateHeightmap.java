@@ -0,0 +1,136 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.collection.PackedIntegerArray;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.Heightmap;
+
+import java.util.function.Predicate;
+
+/**
+ * A heightmap over every column of a {@link MapTemplate}, built once and then kept up to date as blocks are set.
+ * <p>
+ * Heights are packed per chunk column in the same way as the vanilla {@link Heightmap}: the stored value is one above
+ * the top block matching the heightmap predicate, or 0 if no block in the column matches.
+ */
+final class TemplateHeightmap {
+    private static final int ELEMENT_BITS = 9;
+    private static final int MAX_Y = 255;
+
+    private final MapTemplate template;
+    private final Predicate<BlockState> predicate;
+    private final Long2ObjectMap<PackedIntegerArray> columns = new Long2ObjectOpenHashMap<>();
+
+    TemplateHeightmap(MapTemplate template, Heightmap.Type type) {
+        this.template = template;
+        this.predicate = type.getBlockPredicate();
+
+        for (Long2ObjectMap.Entry<MapTemplate.Chunk> entry : Long2ObjectMaps.fastIterable(template.chunks)) {
+            long sectionPos = entry.getLongKey();
+            this.populateSection(
+                    ChunkSectionPos.unpackX(sectionPos),
+                    ChunkSectionPos.unpackY(sectionPos),
+                    ChunkSectionPos.unpackZ(sectionPos),
+                    entry.getValue()
+            );
+        }
+    }
+
+    private void populateSection(int sectionX, int sectionY, int sectionZ, MapTemplate.Chunk chunk) {
+        if (sectionY < 0 || sectionY > MAX_Y >> 4) {
+            return;
+        }
+
+        PackedIntegerArray column = null;
+        int minY = sectionY << 4;
+
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                for (int y = 15; y >= 0; y--) {
+                    if (this.predicate.test(chunk.get(x, y, z))) {
+                        if (column == null) {
+                            column = this.getOrCreateColumn(ChunkPos.toLong(sectionX, sectionZ));
+                        }
+
+                        int index = index(x, z);
+                        int height = minY + y + 1;
+                        if (height > column.get(index)) {
+                            column.set(index, height);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the packed height at the given column.
+     *
+     * @param x the template x-coordinate
+     * @param z the template z-coordinate
+     * @return one above the top matching block, or 0 if there is none
+     */
+    int get(int x, int z) {
+        PackedIntegerArray column = this.columns.get(ChunkPos.toLong(x >> 4, z >> 4));
+        if (column != null) {
+            return column.get(index(x & 15, z & 15));
+        }
+        return 0;
+    }
+
+    /**
+     * Updates this heightmap after a block has been set in the template.
+     * This mirrors the logic of {@link Heightmap#trackUpdate}.
+     */
+    void trackUpdate(int x, int y, int z, BlockState state) {
+        if (y < 0 || y > MAX_Y) {
+            return;
+        }
+
+        int height = this.get(x, z);
+        if (y <= height - 2) {
+            return;
+        }
+
+        if (this.predicate.test(state)) {
+            if (y >= height) {
+                this.set(x, z, y + 1);
+            }
+        } else if (height - 1 == y) {
+            BlockPos.Mutable mutablePos = new BlockPos.Mutable();
+            for (int scanY = y - 1; scanY >= 0; scanY--) {
+                mutablePos.set(x, scanY, z);
+                if (this.predicate.test(this.template.getBlockState(mutablePos))) {
+                    this.set(x, z, scanY + 1);
+                    return;
+                }
+            }
+
+            this.set(x, z, 0);
+        }
+    }
+
+    private void set(int x, int z, int height) {
+        PackedIntegerArray column = this.getOrCreateColumn(ChunkPos.toLong(x >> 4, z >> 4));
+        column.set(index(x & 15, z & 15), height);
+    }
+
+    private PackedIntegerArray getOrCreateColumn(long columnPos) {
+        PackedIntegerArray column = this.columns.get(columnPos);
+        if (column == null) {
+            column = new PackedIntegerArray(ELEMENT_BITS, 256);
+            this.columns.put(columnPos, column);
+        }
+        return column;
+    }
+
+    private static int index(int x, int z) {
+        return x + (z << 4);
+    }
+}
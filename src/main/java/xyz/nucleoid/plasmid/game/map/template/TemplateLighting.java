@@ -0,0 +1,118 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.fabricmc.fabric.api.util.NbtType;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.LightType;
+import net.minecraft.world.chunk.ChunkNibbleArray;
+import org.jetbrains.annotations.Nullable;
+import xyz.nucleoid.plasmid.Plasmid;
+
+/**
+ * Block and sky light levels baked into a {@link MapTemplate} when it was compiled, stored per template chunk as the
+ * nibble arrays used by the lighting engine.
+ * <p>
+ * When a template is generated at a section-aligned origin, these arrays are handed straight to the lighting engine so
+ * that the light of the map does not need to be propagated again.
+ */
+final class TemplateLighting {
+    private static final int NIBBLE_ARRAY_BYTES = 2048;
+    private static final long SECTION_BYTES = NIBBLE_ARRAY_BYTES + 32;
+
+    private final Long2ObjectMap<ChunkNibbleArray> blockLight = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectMap<ChunkNibbleArray> skyLight = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * @param type the type of light
+     * @param chunkPos the template chunk position
+     * @return the baked light of the given template chunk, or null if none was baked. This must not be modified.
+     */
+    @Nullable
+    ChunkNibbleArray get(LightType type, long chunkPos) {
+        return this.getMap(type).get(chunkPos);
+    }
+
+    void put(LightType type, long chunkPos, ChunkNibbleArray light) {
+        this.getMap(type).put(chunkPos, light);
+    }
+
+    boolean isEmpty() {
+        return this.blockLight.isEmpty() && this.skyLight.isEmpty();
+    }
+
+    private Long2ObjectMap<ChunkNibbleArray> getMap(LightType type) {
+        return type == LightType.BLOCK ? this.blockLight : this.skyLight;
+    }
+
+    long estimateRetainedBytes() {
+        return (long) (this.blockLight.size() + this.skyLight.size()) * SECTION_BYTES;
+    }
+
+    ListTag serialize() {
+        LongSet chunks = new LongOpenHashSet(this.blockLight.keySet());
+        chunks.addAll(this.skyLight.keySet());
+
+        ListTag list = new ListTag();
+        for (long chunkPos : chunks) {
+            CompoundTag tag = new CompoundTag();
+            tag.putIntArray("pos", new int[] {
+                    ChunkSectionPos.unpackX(chunkPos),
+                    ChunkSectionPos.unpackY(chunkPos),
+                    ChunkSectionPos.unpackZ(chunkPos)
+            });
+
+            ChunkNibbleArray blockLight = this.blockLight.get(chunkPos);
+            if (blockLight != null) {
+                tag.putByteArray("block", blockLight.asByteArray());
+            }
+
+            ChunkNibbleArray skyLight = this.skyLight.get(chunkPos);
+            if (skyLight != null) {
+                tag.putByteArray("sky", skyLight.asByteArray());
+            }
+
+            list.add(tag);
+        }
+
+        return list;
+    }
+
+    static TemplateLighting deserialize(ListTag list) {
+        TemplateLighting lighting = new TemplateLighting();
+
+        for (int i = 0; i < list.size(); i++) {
+            CompoundTag tag = list.getCompound(i);
+
+            int[] posArray = tag.getIntArray("pos");
+            if (posArray.length != 3) {
+                Plasmid.LOGGER.warn("Invalid baked light pos key: {}", posArray);
+                continue;
+            }
+
+            long chunkPos = ChunkSectionPos.asLong(posArray[0], posArray[1], posArray[2]);
+            readLight(tag, "block", chunkPos, lighting.blockLight);
+            readLight(tag, "sky", chunkPos, lighting.skyLight);
+        }
+
+        return lighting;
+    }
+
+    private static void readLight(CompoundTag tag, String key, long chunkPos, Long2ObjectMap<ChunkNibbleArray> map) {
+        if (!tag.contains(key, NbtType.BYTE_ARRAY)) {
+            return;
+        }
+
+        byte[] bytes = tag.getByteArray(key);
+        if (bytes.length != NIBBLE_ARRAY_BYTES) {
+            Plasmid.LOGGER.warn("Invalid baked {} light array of length {} at {}", key, bytes.length, ChunkSectionPos.from(chunkPos));
+            return;
+        }
+
+        map.put(chunkPos, new ChunkNibbleArray(bytes));
+    }
+}
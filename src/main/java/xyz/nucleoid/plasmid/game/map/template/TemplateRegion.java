@@ -7,11 +7,32 @@ public final class TemplateRegion {
     private final String marker;
     private final BlockBounds bounds;
     private CompoundTag data;
+    // regions of a frozen template only hand out copies of their data
+    private final boolean frozen;
 
     public TemplateRegion(String marker, BlockBounds bounds, CompoundTag data) {
+        this(marker, bounds, data, false);
+    }
+
+    private TemplateRegion(String marker, BlockBounds bounds, CompoundTag data, boolean frozen) {
         this.marker = marker;
         this.bounds = bounds;
         this.data = data;
+        this.frozen = frozen;
+    }
+
+    /**
+     * @return a copy of this region which can no longer be modified, for use by a frozen template
+     */
+    TemplateRegion frozenCopy() {
+        return this.frozen ? this : new TemplateRegion(this.marker, this.bounds, this.data.copy(), true);
+    }
+
+    /**
+     * @return a region with the same marker and data as this region but with the given bounds
+     */
+    TemplateRegion withBounds(BlockBounds bounds) {
+        return new TemplateRegion(this.marker, bounds, this.data, this.frozen);
     }
 
     public String getMarker() {
@@ -23,20 +44,25 @@ public final class TemplateRegion {
     }
 
     /**
-     * Returns the extra data assigned to this region.
+     * Returns the extra data assigned to this region. If this region belongs to a frozen template, a copy of the data
+     * is returned.
      *
      * @return the extra data
      */
     public CompoundTag getData() {
-        return this.data;
+        return this.frozen ? this.data.copy() : this.data;
     }
 
     /**
      * Sets the extra data assigned to this region.
      *
      * @param data the extra data
+     * @throws UnsupportedOperationException if this region belongs to a frozen template
      */
     public void setData(CompoundTag data) {
+        if (this.frozen) {
+            throw new UnsupportedOperationException("Cannot modify a region of a frozen map template");
+        }
         this.data = data;
     }
 
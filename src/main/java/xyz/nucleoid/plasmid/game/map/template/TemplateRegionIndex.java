@@ -0,0 +1,144 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * An immutable index over the regions of a {@link MapTemplate}, allowing regions to be looked up by marker and by
+ * position without scanning every region.
+ * <p>
+ * Regions are bucketed into a grid of 16x16x16 cells. Regions which would cover too many cells are instead kept in a
+ * separate list which is always tested.
+ */
+final class TemplateRegionIndex {
+    private static final int MAX_REGION_CELLS = 512;
+    private static final TemplateRegion[] NO_REGIONS = new TemplateRegion[0];
+
+    private final TemplateRegion[] regions;
+    private final Map<String, List<TemplateRegion>> byMarker = new HashMap<>();
+    private final Long2ObjectMap<TemplateRegion[]> cells = new Long2ObjectOpenHashMap<>();
+    private final TemplateRegion[] largeRegions;
+
+    TemplateRegionIndex(List<TemplateRegion> regions) {
+        this.regions = regions.toArray(NO_REGIONS);
+
+        Long2ObjectMap<List<TemplateRegion>> cells = new Long2ObjectOpenHashMap<>();
+        List<TemplateRegion> largeRegions = new ArrayList<>();
+
+        for (TemplateRegion region : regions) {
+            this.byMarker.computeIfAbsent(region.getMarker(), m -> new ArrayList<>()).add(region);
+
+            BlockBounds bounds = region.getBounds();
+            if (cellCount(bounds) > MAX_REGION_CELLS) {
+                largeRegions.add(region);
+                continue;
+            }
+
+            BlockPos min = bounds.getMin();
+            BlockPos max = bounds.getMax();
+            for (int cellZ = min.getZ() >> 4; cellZ <= max.getZ() >> 4; cellZ++) {
+                for (int cellY = min.getY() >> 4; cellY <= max.getY() >> 4; cellY++) {
+                    for (int cellX = min.getX() >> 4; cellX <= max.getX() >> 4; cellX++) {
+                        cells.computeIfAbsent(ChunkSectionPos.asLong(cellX, cellY, cellZ), p -> new ArrayList<>()).add(region);
+                    }
+                }
+            }
+        }
+
+        this.byMarker.replaceAll((marker, markerRegions) -> Collections.unmodifiableList(markerRegions));
+
+        for (Long2ObjectMap.Entry<List<TemplateRegion>> entry : Long2ObjectMaps.fastIterable(cells)) {
+            this.cells.put(entry.getLongKey(), entry.getValue().toArray(NO_REGIONS));
+        }
+
+        this.largeRegions = largeRegions.toArray(NO_REGIONS);
+    }
+
+    /**
+     * @param marker the marker to look up
+     * @return an unmodifiable list of every region with the given marker, in the order they were added
+     */
+    List<TemplateRegion> getByMarker(String marker) {
+        return this.byMarker.getOrDefault(marker, Collections.emptyList());
+    }
+
+    void forEachAt(int x, int y, int z, Consumer<TemplateRegion> consumer) {
+        TemplateRegion[] cell = this.cells.get(ChunkSectionPos.asLong(x >> 4, y >> 4, z >> 4));
+        if (cell != null) {
+            for (TemplateRegion region : cell) {
+                if (region.getBounds().contains(x, y, z)) {
+                    consumer.accept(region);
+                }
+            }
+        }
+
+        for (TemplateRegion region : this.largeRegions) {
+            if (region.getBounds().contains(x, y, z)) {
+                consumer.accept(region);
+            }
+        }
+    }
+
+    void forEachIntersecting(BlockBounds bounds, Consumer<TemplateRegion> consumer) {
+        // scanning the cells is only worthwhile when the query covers fewer cells than there are regions
+        if (cellCount(bounds) > this.regions.length) {
+            for (TemplateRegion region : this.regions) {
+                if (region.getBounds().intersects(bounds)) {
+                    consumer.accept(region);
+                }
+            }
+            return;
+        }
+
+        BlockPos min = bounds.getMin();
+        BlockPos max = bounds.getMax();
+        for (int cellZ = min.getZ() >> 4; cellZ <= max.getZ() >> 4; cellZ++) {
+            for (int cellY = min.getY() >> 4; cellY <= max.getY() >> 4; cellY++) {
+                for (int cellX = min.getX() >> 4; cellX <= max.getX() >> 4; cellX++) {
+                    TemplateRegion[] cell = this.cells.get(ChunkSectionPos.asLong(cellX, cellY, cellZ));
+                    if (cell == null) {
+                        continue;
+                    }
+
+                    for (TemplateRegion region : cell) {
+                        // a region may be in several cells: only accept it from the cell holding the minimum corner of the overlap
+                        if (region.getBounds().intersects(bounds) && isOverlapMinCell(region.getBounds(), bounds, cellX, cellY, cellZ)) {
+                            consumer.accept(region);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (TemplateRegion region : this.largeRegions) {
+            if (region.getBounds().intersects(bounds)) {
+                consumer.accept(region);
+            }
+        }
+    }
+
+    private static boolean isOverlapMinCell(BlockBounds region, BlockBounds query, int cellX, int cellY, int cellZ) {
+        return Math.max(region.getMin().getX(), query.getMin().getX()) >> 4 == cellX
+                && Math.max(region.getMin().getY(), query.getMin().getY()) >> 4 == cellY
+                && Math.max(region.getMin().getZ(), query.getMin().getZ()) >> 4 == cellZ;
+    }
+
+    private static long cellCount(BlockBounds bounds) {
+        BlockPos min = bounds.getMin();
+        BlockPos max = bounds.getMax();
+        return (long) ((max.getX() >> 4) - (min.getX() >> 4) + 1)
+                * ((max.getY() >> 4) - (min.getY() >> 4) + 1)
+                * ((max.getZ() >> 4) - (min.getZ() >> 4) + 1);
+    }
+}
@@ -0,0 +1,338 @@
+package xyz.nucleoid.plasmid.game.map.template;
+
+import net.fabricmc.fabric.api.util.NbtType;
+import net.minecraft.block.BlockMirror;
+import net.minecraft.block.BlockRotation;
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.FloatTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.util.registry.RegistryKey;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.biome.Biome;
+import org.jetbrains.annotations.Nullable;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A view of another template with a mirror, rotation and offset applied lazily to every query.
+ * <p>
+ * Horizontal positions are transformed by a matrix made up of the mirror followed by the rotation, and then moved so
+ * that the transformed bounds keep the minimum corner of the source bounds plus the offset. Queries by position are
+ * mapped back to the source through the inverse transform.
+ *
+ * @see MapTemplateView#transformed(BlockRotation, BlockMirror, BlockPos)
+ */
+final class TransformedMapTemplateView implements MapTemplateView {
+    private final MapTemplateView source;
+    private final BlockRotation rotation;
+    private final BlockMirror mirror;
+
+    // the matrix applied to horizontal block positions: x' = xx * x + xz * z, z' = zx * x + zz * z
+    private final int xx, xz, zx, zz;
+    private final int offsetX, offsetY, offsetZ;
+
+    private final BlockBounds bounds;
+
+    // transformed copies of the source regions, keyed by the source region
+    private final Map<TemplateRegion, TemplateRegion> regions = new ConcurrentHashMap<>();
+
+    TransformedMapTemplateView(MapTemplateView source, BlockRotation rotation, BlockMirror mirror, BlockPos offset) {
+        this.source = source;
+        this.rotation = rotation;
+        this.mirror = mirror;
+
+        int mirrorX = mirror == BlockMirror.FRONT_BACK ? -1 : 1;
+        int mirrorZ = mirror == BlockMirror.LEFT_RIGHT ? -1 : 1;
+
+        switch (rotation) {
+            case CLOCKWISE_90:
+                this.xx = 0;
+                this.xz = -mirrorZ;
+                this.zx = mirrorX;
+                this.zz = 0;
+                break;
+            case CLOCKWISE_180:
+                this.xx = -mirrorX;
+                this.xz = 0;
+                this.zx = 0;
+                this.zz = -mirrorZ;
+                break;
+            case COUNTERCLOCKWISE_90:
+                this.xx = 0;
+                this.xz = mirrorZ;
+                this.zx = -mirrorX;
+                this.zz = 0;
+                break;
+            default:
+                this.xx = mirrorX;
+                this.xz = 0;
+                this.zx = 0;
+                this.zz = mirrorZ;
+                break;
+        }
+
+        BlockBounds sourceBounds = source.getBounds();
+        BlockPos sourceMin = sourceBounds.getMin();
+        BlockPos sourceMax = sourceBounds.getMax();
+
+        int minX = Math.min(this.xx * sourceMin.getX() + this.xz * sourceMin.getZ(), this.xx * sourceMax.getX() + this.xz * sourceMax.getZ());
+        int minZ = Math.min(this.zx * sourceMin.getX() + this.zz * sourceMin.getZ(), this.zx * sourceMax.getX() + this.zz * sourceMax.getZ());
+
+        this.offsetX = sourceMin.getX() + offset.getX() - minX;
+        this.offsetY = offset.getY();
+        this.offsetZ = sourceMin.getZ() + offset.getZ() - minZ;
+
+        this.bounds = this.transform(sourceBounds);
+    }
+
+    private int transformX(int x, int z) {
+        return this.xx * x + this.xz * z + this.offsetX;
+    }
+
+    private int transformZ(int x, int z) {
+        return this.zx * x + this.zz * z + this.offsetZ;
+    }
+
+    private BlockPos transform(BlockPos pos) {
+        return new BlockPos(this.transformX(pos.getX(), pos.getZ()), pos.getY() + this.offsetY, this.transformZ(pos.getX(), pos.getZ()));
+    }
+
+    private BlockBounds transform(BlockBounds bounds) {
+        return new BlockBounds(this.transform(bounds.getMin()), this.transform(bounds.getMax()));
+    }
+
+    private BlockPos inverse(int x, int y, int z) {
+        // the matrix is orthogonal, so its inverse is its transpose
+        int localX = x - this.offsetX;
+        int localZ = z - this.offsetZ;
+        return new BlockPos(this.xx * localX + this.zx * localZ, y - this.offsetY, this.xz * localX + this.zz * localZ);
+    }
+
+    private BlockPos inverse(BlockPos pos) {
+        return this.inverse(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    private BlockBounds inverse(BlockBounds bounds) {
+        return new BlockBounds(this.inverse(bounds.getMin()), this.inverse(bounds.getMax()));
+    }
+
+    /**
+     * Transforms a continuous position, such that a position within a block stays within the transformed block.
+     */
+    private double transformX(double x, double z) {
+        return this.xx * x + this.xz * z + this.offsetX + (1 - this.xx - this.xz) / 2;
+    }
+
+    private double transformZ(double x, double z) {
+        return this.zx * x + this.zz * z + this.offsetZ + (1 - this.zx - this.zz) / 2;
+    }
+
+    private TemplateRegion transform(TemplateRegion region) {
+        return this.regions.computeIfAbsent(region, r -> r.withBounds(this.transform(r.getBounds())));
+    }
+
+    @Override
+    public BlockState getBlockState(BlockPos pos) {
+        return this.source.getBlockState(this.inverse(pos)).mirror(this.mirror).rotate(this.rotation);
+    }
+
+    @Nullable
+    @Override
+    public CompoundTag getBlockEntityTag(BlockPos pos) {
+        CompoundTag tag = this.source.getBlockEntityTag(this.inverse(pos));
+        if (tag == null) {
+            return null;
+        }
+
+        CompoundTag transformed = tag.copy();
+        transformed.putInt("x", pos.getX());
+        transformed.putInt("y", pos.getY());
+        transformed.putInt("z", pos.getZ());
+        return transformed;
+    }
+
+    @Override
+    public Stream<CompoundTag> getEntitiesInChunk(int chunkX, int chunkY, int chunkZ) {
+        int minX = chunkX << 4;
+        int minY = chunkY << 4;
+        int minZ = chunkZ << 4;
+
+        BlockBounds sourceChunks = this.inverse(new BlockBounds(new BlockPos(minX, minY, minZ), new BlockPos(minX + 15, minY + 15, minZ + 15)));
+        BlockPos sourceMin = sourceChunks.getMin();
+        BlockPos sourceMax = sourceChunks.getMax();
+
+        List<CompoundTag> entities = new ArrayList<>();
+        for (int sourceChunkZ = sourceMin.getZ() >> 4; sourceChunkZ <= sourceMax.getZ() >> 4; sourceChunkZ++) {
+            for (int sourceChunkY = sourceMin.getY() >> 4; sourceChunkY <= sourceMax.getY() >> 4; sourceChunkY++) {
+                for (int sourceChunkX = sourceMin.getX() >> 4; sourceChunkX <= sourceMax.getX() >> 4; sourceChunkX++) {
+                    BlockPos sourceChunkMin = new BlockPos(sourceChunkX << 4, sourceChunkY << 4, sourceChunkZ << 4);
+                    BlockPos chunkMin = new BlockPos(minX, minY, minZ);
+
+                    this.source.getEntitiesInChunk(sourceChunkX, sourceChunkY, sourceChunkZ).forEach(tag -> {
+                        CompoundTag transformed = this.transformEntity(tag, sourceChunkMin, chunkMin);
+                        if (transformed != null) {
+                            entities.add(transformed);
+                        }
+                    });
+                }
+            }
+        }
+
+        return entities.stream();
+    }
+
+    /**
+     * Transforms an entity from a source chunk into the given chunk of this view.
+     *
+     * @return the transformed copy of the entity tag, or null if the entity does not end up in the given chunk
+     */
+    @Nullable
+    private CompoundTag transformEntity(CompoundTag tag, BlockPos sourceChunkMin, BlockPos chunkMin) {
+        ListTag posTag = tag.getList("Pos", NbtType.DOUBLE);
+        double sourceX = posTag.getDouble(0) + sourceChunkMin.getX();
+        double sourceY = posTag.getDouble(1) + sourceChunkMin.getY();
+        double sourceZ = posTag.getDouble(2) + sourceChunkMin.getZ();
+
+        double x = this.transformX(sourceX, sourceZ) - chunkMin.getX();
+        double y = sourceY + this.offsetY - chunkMin.getY();
+        double z = this.transformZ(sourceX, sourceZ) - chunkMin.getZ();
+        if (x < 0.0 || x >= 16.0 || y < 0.0 || y >= 16.0 || z < 0.0 || z >= 16.0) {
+            return null;
+        }
+
+        CompoundTag transformed = tag.copy();
+
+        ListTag transformedPos = new ListTag();
+        transformedPos.add(DoubleTag.of(x));
+        transformedPos.add(DoubleTag.of(y));
+        transformedPos.add(DoubleTag.of(z));
+        transformed.put("Pos", transformedPos);
+
+        ListTag rotationTag = transformed.getList("Rotation", NbtType.FLOAT);
+        if (rotationTag.size() == 2) {
+            rotationTag.set(0, FloatTag.of(this.transformYaw(rotationTag.getFloat(0))));
+        }
+
+        // AbstractDecorationEntity has an attachment position and facing
+        if (transformed.contains("TileX", NbtType.INT)) {
+            BlockPos tile = this.transform(new BlockPos(
+                    transformed.getInt("TileX") + sourceChunkMin.getX(),
+                    transformed.getInt("TileY") + sourceChunkMin.getY(),
+                    transformed.getInt("TileZ") + sourceChunkMin.getZ()
+            ));
+            transformed.putInt("TileX", tile.getX() - chunkMin.getX());
+            transformed.putInt("TileY", tile.getY() - chunkMin.getY());
+            transformed.putInt("TileZ", tile.getZ() - chunkMin.getZ());
+
+            this.transformFacing(transformed);
+        }
+
+        return transformed;
+    }
+
+    private float transformYaw(float yaw) {
+        yaw = MathHelper.wrapDegrees(yaw);
+        switch (this.mirror) {
+            case LEFT_RIGHT:
+                yaw = 180.0F - yaw;
+                break;
+            case FRONT_BACK:
+                yaw = -yaw;
+                break;
+            default:
+                break;
+        }
+
+        switch (this.rotation) {
+            case CLOCKWISE_90:
+                yaw += 90.0F;
+                break;
+            case CLOCKWISE_180:
+                yaw += 180.0F;
+                break;
+            case COUNTERCLOCKWISE_90:
+                yaw += 270.0F;
+                break;
+            default:
+                break;
+        }
+
+        return MathHelper.wrapDegrees(yaw);
+    }
+
+    private void transformFacing(CompoundTag tag) {
+        if (!tag.contains("Facing", NbtType.BYTE)) {
+            return;
+        }
+
+        // paintings only store horizontal facings, while item frames store any direction
+        boolean horizontal = "minecraft:painting".equals(tag.getString("id"));
+
+        int id = tag.getByte("Facing");
+        Direction facing = horizontal ? Direction.fromHorizontal(id) : Direction.byId(id);
+        facing = this.rotation.rotate(this.mirror.apply(facing));
+
+        tag.putByte("Facing", (byte) (horizontal ? facing.getHorizontal() : facing.getId()));
+    }
+
+    @Override
+    public int getTopY(int x, int z, Heightmap.Type heightmap) {
+        BlockPos sourcePos = this.inverse(x, 0, z);
+        return this.source.getTopY(sourcePos.getX(), sourcePos.getZ(), heightmap) + this.offsetY;
+    }
+
+    @Override
+    public boolean isColumnEmpty(int x, int z, Heightmap.Type heightmap) {
+        BlockPos sourcePos = this.inverse(x, 0, z);
+        return this.source.isColumnEmpty(sourcePos.getX(), sourcePos.getZ(), heightmap);
+    }
+
+    @Override
+    public BlockBounds getBounds() {
+        return this.bounds;
+    }
+
+    @Override
+    public RegistryKey<Biome> getBiome() {
+        return this.source.getBiome();
+    }
+
+    @Override
+    public CompoundTag getData() {
+        return this.source.getData();
+    }
+
+    @Override
+    public List<TemplateRegion> getTemplateRegionList(String marker) {
+        List<TemplateRegion> sourceRegions = this.source.getTemplateRegionList(marker);
+
+        List<TemplateRegion> regions = new ArrayList<>(sourceRegions.size());
+        for (TemplateRegion region : sourceRegions) {
+            regions.add(this.transform(region));
+        }
+
+        return Collections.unmodifiableList(regions);
+    }
+
+    @Override
+    public void forEachRegionAt(BlockPos pos, Consumer<TemplateRegion> consumer) {
+        this.source.forEachRegionAt(this.inverse(pos), region -> consumer.accept(this.transform(region)));
+    }
+
+    @Override
+    public void forEachRegionIntersecting(BlockBounds bounds, Consumer<TemplateRegion> consumer) {
+        this.source.forEachRegionIntersecting(this.inverse(bounds), region -> consumer.accept(this.transform(region)));
+    }
+}
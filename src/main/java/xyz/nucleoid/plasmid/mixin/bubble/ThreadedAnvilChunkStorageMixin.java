@@ -4,18 +4,29 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ByteMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.nbt.CompoundTag;
 import net.minecraft.server.world.ChunkHolder;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.server.world.ThreadedAnvilChunkStorage;
+import net.minecraft.util.math.ChunkPos;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Redirect;
+import xyz.nucleoid.plasmid.world.bubble.BubbleWorld;
 import xyz.nucleoid.plasmid.world.bubble.CloseBubbleWorld;
 
+import java.io.IOException;
 import java.util.Queue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Mixin(ThreadedAnvilChunkStorage.class)
 public abstract class ThreadedAnvilChunkStorageMixin implements CloseBubbleWorld {
+    @Shadow
+    @Final
+    private ServerWorld world;
+
     @Shadow
     private volatile Long2ObjectLinkedOpenHashMap<ChunkHolder> chunkHolders;
     @Shadow
@@ -43,6 +54,28 @@ public abstract class ThreadedAnvilChunkStorageMixin implements CloseBubbleWorld
     @Final
     private Int2ObjectMap<ThreadedAnvilChunkStorage.EntityTracker> entityTrackers;
 
+    /**
+     * Loads the compiled snapshot of a chunk in a bubble world as if it had been read from disk, so that it is upgraded
+     * and deserialized as a saved chunk rather than being generated.
+     */
+    @Redirect(
+            method = "getUpdatedChunkTag",
+            at = @At(
+                    value = "INVOKE",
+                    target = "Lnet/minecraft/server/world/ThreadedAnvilChunkStorage;getNbt(Lnet/minecraft/util/math/ChunkPos;)Lnet/minecraft/nbt/CompoundTag;"
+            )
+    )
+    private CompoundTag getChunkSnapshot(ThreadedAnvilChunkStorage storage, ChunkPos pos) throws IOException {
+        BubbleWorld bubble = BubbleWorld.forWorld(this.world);
+        if (bubble != null) {
+            CompoundTag snapshot = bubble.takeChunkSnapshot(pos);
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+        return storage.getNbt(pos);
+    }
+
     @Override
     public void closeBubble() {
         this.chunkHolders.clear();
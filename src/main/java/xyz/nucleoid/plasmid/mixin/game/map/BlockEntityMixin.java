@@ -0,0 +1,30 @@
+package xyz.nucleoid.plasmid.mixin.game.map;
+
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import xyz.nucleoid.plasmid.game.map.template.StagingMapManager;
+
+import javax.annotation.Nullable;
+
+@Mixin(BlockEntity.class)
+public abstract class BlockEntityMixin {
+    @Shadow
+    @Nullable
+    protected World world;
+
+    @Shadow
+    protected BlockPos pos;
+
+    @Inject(method = "markDirty", at = @At("HEAD"))
+    private void onMarkDirty(CallbackInfo ci) {
+        if (this.world != null) {
+            StagingMapManager.onBlockChanged(this.world, this.pos);
+        }
+    }
+}
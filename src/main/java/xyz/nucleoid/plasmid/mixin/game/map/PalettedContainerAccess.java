@@ -0,0 +1,23 @@
+package xyz.nucleoid.plasmid.mixin.game.map;
+
+import net.minecraft.util.collection.PackedIntegerArray;
+import net.minecraft.world.chunk.Palette;
+import net.minecraft.world.chunk.PalettedContainer;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+@Mixin(PalettedContainer.class)
+public interface PalettedContainerAccess<T> {
+    @Accessor
+    Palette<T> getPalette();
+
+    @Accessor
+    PackedIntegerArray getData();
+
+    @Accessor
+    int getPaletteSize();
+
+    @Invoker
+    void callSetPaletteSize(int size);
+}
@@ -0,0 +1,24 @@
+package xyz.nucleoid.plasmid.mixin.game.map;
+
+import net.minecraft.server.world.ServerWorld;
+import org.spongepowered.asm.mixin.Mixin;
+import xyz.nucleoid.plasmid.game.map.template.StagingMapHolder;
+import xyz.nucleoid.plasmid.game.map.template.StagingMapManager;
+
+import javax.annotation.Nullable;
+
+@Mixin(ServerWorld.class)
+public abstract class ServerWorldMixin implements StagingMapHolder {
+    private StagingMapManager stagingMapManager;
+
+    @Override
+    public void setStagingMapManager(@Nullable StagingMapManager manager) {
+        this.stagingMapManager = manager;
+    }
+
+    @Nullable
+    @Override
+    public StagingMapManager getStagingMapManager() {
+        return this.stagingMapManager;
+    }
+}
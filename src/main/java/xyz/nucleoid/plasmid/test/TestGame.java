@@ -29,6 +29,7 @@ public final class TestGame {
                     BubbleWorldConfig worldConfig = new BubbleWorldConfig()
                             .setGenerator(generator)
                             .setSpawner(BubbleWorldSpawner.atSurface(BlockPos.ORIGIN))
+                            .setPregenerate(template.getBounds())
                             .setDefaultGameMode(GameMode.ADVENTURE)
                             .setTimeOfDay(6000)
                             .setGameRule(GameRules.DO_MOB_SPAWNING, false)
@@ -0,0 +1,27 @@
+package xyz.nucleoid.plasmid.world.bubble;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.math.ChunkPos;
+
+import javax.annotation.Nullable;
+
+/**
+ * A source of complete, already generated chunks for a bubble world, in the same form as chunks saved to disk.
+ * <p>
+ * When a chunk with a snapshot is first loaded, the snapshot is read instead of the chunk being generated, so that
+ * static maps can skip world generation entirely. Each snapshot is only used once per world, so chunks which are
+ * unloaded and loaded again come from the world's own storage as usual.
+ *
+ * @see BubbleWorldConfig#setChunkSnapshots(BubbleChunkSnapshots)
+ */
+public interface BubbleChunkSnapshots {
+    /**
+     * Returns the chunk tag for the given chunk, in the format written by
+     * {@link net.minecraft.world.ChunkSerializer#serialize}. The returned tag is owned by the caller.
+     *
+     * @param pos the position of the chunk to load
+     * @return the chunk tag, or null if there is no snapshot for this chunk and it should be generated
+     */
+    @Nullable
+    CompoundTag getChunkTag(ChunkPos pos);
+}
@@ -1,15 +1,20 @@
 package xyz.nucleoid.plasmid.world.bubble;
 
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import net.minecraft.nbt.CompoundTag;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.registry.RegistryKey;
 import net.minecraft.world.World;
 import xyz.nucleoid.plasmid.game.player.PlayerSet;
 import xyz.nucleoid.plasmid.game.player.PlayerSnapshot;
+import xyz.nucleoid.plasmid.util.BlockBounds;
 import xyz.nucleoid.plasmid.util.Scheduler;
 
 import javax.annotation.Nullable;
@@ -26,6 +31,11 @@ public final class BubbleWorld implements AutoCloseable {
 
     private final Set<ServerPlayerEntity> playerView = Collections.unmodifiableSet(this.playerSnapshots.keySet());
 
+    private BubbleWorldPregenerator pregenerator;
+
+    // the chunks whose snapshot has already been loaded, which must come from the world storage from then on
+    private final LongSet loadedSnapshots = new LongOpenHashSet();
+
     BubbleWorld(ServerWorld world, BubbleWorldConfig config, Identifier bubbleKey) {
         this.world = world;
         this.config = config;
@@ -59,6 +69,10 @@ public final class BubbleWorld implements AutoCloseable {
         Scheduler.INSTANCE.submit(server -> {
             this.kickPlayers();
 
+            if (this.pregenerator != null) {
+                this.pregenerator.release();
+            }
+
             if (this.world.getPlayers().isEmpty() && this.world.getChunkManager().getLoadedChunkCount() <= 0) {
                 future.complete(null);
             } else {
@@ -146,6 +160,42 @@ public final class BubbleWorld implements AutoCloseable {
         return this.config;
     }
 
+    void startPregenerating(BlockBounds bounds) {
+        this.pregenerator = BubbleWorldPregenerator.start(this.world, bounds);
+    }
+
+    /**
+     * @return the pregenerator for this world, or null if pregeneration was not enabled in its config
+     * @see BubbleWorldConfig#setPregenerate
+     */
+    @Nullable
+    public BubbleWorldPregenerator getPregenerator() {
+        return this.pregenerator;
+    }
+
+    /**
+     * Takes the snapshot of the given chunk to load in place of generating it, if one has not already been taken.
+     *
+     * @param pos the position of the chunk being loaded
+     * @return the chunk tag, or null if the chunk should be loaded from storage or generated
+     * @see BubbleWorldConfig#setChunkSnapshots(BubbleChunkSnapshots)
+     */
+    @Nullable
+    public CompoundTag takeChunkSnapshot(ChunkPos pos) {
+        BubbleChunkSnapshots snapshots = this.config.getChunkSnapshots();
+        if (snapshots == null) {
+            return null;
+        }
+
+        synchronized (this.loadedSnapshots) {
+            if (!this.loadedSnapshots.add(pos.toLong())) {
+                return null;
+            }
+        }
+
+        return snapshots.getChunkTag(pos);
+    }
+
     public Set<ServerPlayerEntity> getPlayers() {
         return this.playerView;
     }
@@ -7,6 +7,7 @@ import net.minecraft.world.GameMode;
 import net.minecraft.world.GameRules;
 import net.minecraft.world.dimension.DimensionType;
 import net.minecraft.world.gen.chunk.ChunkGenerator;
+import xyz.nucleoid.plasmid.util.BlockBounds;
 
 import javax.annotation.Nullable;
 
@@ -19,6 +20,8 @@ public final class BubbleWorldConfig {
     private int timeOfDay = 6000;
     private Difficulty difficulty = Difficulty.NORMAL;
     private final GameRuleStore gameRules = new GameRuleStore();
+    private BlockBounds pregenerateBounds = null;
+    private BubbleChunkSnapshots chunkSnapshots = null;
 
     public BubbleWorldConfig setSeed(long seed) {
         this.seed = seed;
@@ -74,6 +77,31 @@ public final class BubbleWorldConfig {
         return this;
     }
 
+    /**
+     * Sets bounds in which every chunk should be generated as soon as the world opens, rather than on demand as
+     * players move around. This would usually be the bounds of the map template used by the world.
+     *
+     * @param bounds the bounds to pregenerate, or null to generate chunks on demand
+     * @return this config
+     * @see BubbleWorld#getPregenerator()
+     */
+    public BubbleWorldConfig setPregenerate(@Nullable BlockBounds bounds) {
+        this.pregenerateBounds = bounds;
+        return this;
+    }
+
+    /**
+     * Sets a source of already generated chunks to load in place of generating them, such as the snapshots compiled
+     * alongside a map template. Chunks without a snapshot are still generated by the world generator.
+     *
+     * @param snapshots the chunk snapshots, or null to generate every chunk
+     * @return this config
+     */
+    public BubbleWorldConfig setChunkSnapshots(@Nullable BubbleChunkSnapshots snapshots) {
+        this.chunkSnapshots = snapshots;
+        return this;
+    }
+
     public long getSeed() {
         return this.seed;
     }
@@ -111,4 +139,14 @@ public final class BubbleWorldConfig {
     public GameRuleStore getGameRules() {
         return this.gameRules;
     }
+
+    @Nullable
+    public BlockBounds getPregenerateBounds() {
+        return this.pregenerateBounds;
+    }
+
+    @Nullable
+    public BubbleChunkSnapshots getChunkSnapshots() {
+        return this.chunkSnapshots;
+    }
 }
@@ -17,6 +17,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import xyz.nucleoid.plasmid.Plasmid;
 import xyz.nucleoid.plasmid.mixin.bubble.MinecraftServerAccess;
+import xyz.nucleoid.plasmid.util.BlockBounds;
 
 import java.io.File;
 import java.io.IOException;
@@ -62,6 +63,11 @@ public final class BubbleWorldManager {
 
         this.serverAccess.getWorlds().put(worldKey, world);
 
+        BlockBounds pregenerateBounds = config.getPregenerateBounds();
+        if (pregenerateBounds != null) {
+            bubble.startPregenerating(pregenerateBounds);
+        }
+
         return bubble;
     }
 
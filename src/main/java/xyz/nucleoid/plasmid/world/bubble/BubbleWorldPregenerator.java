@@ -0,0 +1,133 @@
+package xyz.nucleoid.plasmid.world.bubble;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.server.world.ChunkTicketType;
+import net.minecraft.server.world.ServerChunkManager;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import xyz.nucleoid.plasmid.util.BlockBounds;
+import xyz.nucleoid.plasmid.util.Scheduler;
+
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Generates every chunk within some bounds of a bubble world ahead of time, so that they do not need to be generated
+ * on demand as players first move around.
+ * <p>
+ * Chunks are requested with tickets, so they are generated by the chunk system across the worker pool. Only a limited
+ * number of chunks are requested at once, so that the server thread is not flooded with chunks to load. Requested
+ * chunks are held loaded until the bubble world closes.
+ */
+public final class BubbleWorldPregenerator {
+    private static final ChunkTicketType<ChunkPos> TICKET_TYPE = ChunkTicketType.create("plasmid:pregenerate", Comparator.comparingLong(ChunkPos::toLong));
+
+    private static final int MAX_PENDING_CHUNKS = 64;
+
+    private final ServerWorld world;
+    private final LongList chunks;
+
+    private final LongList pendingChunks = new LongArrayList(MAX_PENDING_CHUNKS);
+    private int nextChunk;
+    private volatile int generatedChunks;
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private boolean released;
+
+    private BubbleWorldPregenerator(ServerWorld world, LongList chunks) {
+        this.world = world;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Starts generating every chunk which intersects the given bounds. This must be called on the server thread.
+     *
+     * @param world the world to generate chunks in
+     * @param bounds the bounds to generate
+     * @return the started pregenerator
+     */
+    static BubbleWorldPregenerator start(ServerWorld world, BlockBounds bounds) {
+        BlockPos min = bounds.getMin();
+        BlockPos max = bounds.getMax();
+
+        LongList chunks = new LongArrayList();
+        for (int chunkZ = min.getZ() >> 4; chunkZ <= max.getZ() >> 4; chunkZ++) {
+            for (int chunkX = min.getX() >> 4; chunkX <= max.getX() >> 4; chunkX++) {
+                chunks.add(ChunkPos.toLong(chunkX, chunkZ));
+            }
+        }
+
+        BubbleWorldPregenerator pregenerator = new BubbleWorldPregenerator(world, chunks);
+        pregenerator.tick();
+
+        Scheduler.INSTANCE.repeatWhile(server -> pregenerator.tick(), t -> !pregenerator.future.isDone(), 1, 1);
+
+        return pregenerator;
+    }
+
+    private void tick() {
+        if (this.released) {
+            return;
+        }
+
+        ServerChunkManager chunkManager = this.world.getChunkManager();
+
+        LongIterator iterator = this.pendingChunks.iterator();
+        while (iterator.hasNext()) {
+            long chunkPos = iterator.nextLong();
+            if (chunkManager.isChunkLoaded(ChunkPos.getPackedX(chunkPos), ChunkPos.getPackedZ(chunkPos))) {
+                iterator.remove();
+                this.generatedChunks++;
+            }
+        }
+
+        while (this.pendingChunks.size() < MAX_PENDING_CHUNKS && this.nextChunk < this.chunks.size()) {
+            long chunkPos = this.chunks.getLong(this.nextChunk++);
+
+            ChunkPos pos = new ChunkPos(chunkPos);
+            chunkManager.addTicket(TICKET_TYPE, pos, 0, pos);
+            this.pendingChunks.add(chunkPos);
+        }
+
+        if (this.generatedChunks >= this.chunks.size()) {
+            this.future.complete(null);
+        }
+    }
+
+    /**
+     * Releases the tickets holding every requested chunk loaded, and stops generating any more chunks. This must be
+     * called on the server thread.
+     */
+    void release() {
+        if (this.released) {
+            return;
+        }
+        this.released = true;
+
+        ServerChunkManager chunkManager = this.world.getChunkManager();
+        for (int i = 0; i < this.nextChunk; i++) {
+            ChunkPos pos = new ChunkPos(this.chunks.getLong(i));
+            chunkManager.removeTicket(TICKET_TYPE, pos, 0, pos);
+        }
+
+        this.future.cancel(false);
+    }
+
+    /**
+     * @return a future which completes once every chunk has been generated, or is cancelled if the world closes first
+     */
+    public CompletableFuture<Void> getFuture() {
+        return this.future;
+    }
+
+    /**
+     * @return the fraction of chunks which have been generated, from 0 to 1
+     */
+    public float getProgress() {
+        int total = this.chunks.size();
+        return total > 0 ? Math.min((float) this.generatedChunks / total, 1.0F) : 1.0F;
+    }
+}